@@ -0,0 +1,46 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+#include "second-sight/jni/focus_measure.h"
+
+float ComputeFocusMeasure(const uint8* const y_data, const int width,
+                          const int height, const int y_row_stride,
+                          const int y_pixel_stride, const int step) {
+  const int row_step = step * y_row_stride;
+  const int pixel_step = step * y_pixel_stride;
+
+  int64 sum = 0;
+  int64 sum_squares = 0;
+  int64 count = 0;
+  for (int y = step; y < height - step; y += step) {
+    const uint8* const row = y_data + y * y_row_stride;
+    for (int x = step; x < width - step; x += step) {
+      const uint8* const center = row + x * y_pixel_stride;
+      const int laplacian = 4 * center[0] - center[-pixel_step] -
+                            center[pixel_step] - center[-row_step] -
+                            center[row_step];
+      sum += laplacian;
+      sum_squares += laplacian * laplacian;
+      ++count;
+    }
+  }
+
+  if (count == 0) {
+    return 0.0f;
+  }
+  const double mean = static_cast<double>(sum) / count;
+  return static_cast<float>(static_cast<double>(sum_squares) / count -
+                            mean * mean);
+}
@@ -0,0 +1,41 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+// Estimates how sharp a camera frame is, so that blurred frames can be
+// skipped before they reach the detector or the cloud.
+
+#ifndef ORG_TENSORFLOW_JNI_IMAGEUTILS_FOCUS_MEASURE_H_
+#define ORG_TENSORFLOW_JNI_IMAGEUTILS_FOCUS_MEASURE_H_
+
+#include "tensorflow/core/platform/types.h"
+
+using namespace tensorflow;
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Returns the variance of the Laplacian of the Y plane, sampled every step
+// pixels in both directions. Motion blur and defocus remove the high
+// frequencies the Laplacian responds to, so lower values mean blurrier frames.
+float ComputeFocusMeasure(const uint8* const y_data, const int width,
+                          const int height, const int y_row_stride,
+                          const int y_pixel_stride, const int step);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif  // ORG_TENSORFLOW_JNI_IMAGEUTILS_FOCUS_MEASURE_H_
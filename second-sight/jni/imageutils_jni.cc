@@ -21,6 +21,8 @@ limitations under the License.
 #include <stdlib.h>
 
 #include "tensorflow/core/platform/types.h"
+#include "second-sight/jni/focus_measure.h"
+#include "second-sight/jni/luma2tiles.h"
 #include "second-sight/jni/rgb2yuv.h"
 #include "second-sight/jni/yuv2rgb.h"
 
@@ -57,6 +59,32 @@ IMAGEUTILS_METHOD(convertRGB565ToYUV420SP)(
     JNIEnv* env, jclass clazz, jbyteArray input, jbyteArray output,
     jint width, jint height);
 
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420PlanesToARGB8888)(
+    JNIEnv* env, jclass clazz, jobject y, jobject u, jobject v,
+    jintArray output, jint width, jint height, jint y_row_stride,
+    jint uv_row_stride, jint uv_pixel_stride);
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(extractLumaTiles)(
+    JNIEnv* env, jclass clazz, jobject y, jobject output, jint width,
+    jint height, jint y_row_stride, jint y_pixel_stride, jint cols, jint rows,
+    jint tile_size);
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(extractARGB8888Tiles)(
+    JNIEnv* env, jclass clazz, jintArray input, jobject output, jint width,
+    jint height, jint cols, jint rows, jint tile_size);
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(downsampleTiles)(
+    JNIEnv* env, jclass clazz, jobject tiles, jint num_tiles, jint tile_size,
+    jbyteArray output, jint thumbnail_size);
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertLumaTilesToARGB8888)(
+    JNIEnv* env, jclass clazz, jobject tiles, jintArray output, jint cols,
+    jint rows, jint tile_size);
+
+JNIEXPORT jfloat JNICALL IMAGEUTILS_METHOD(computeFocusMeasure)(
+    JNIEnv* env, jclass clazz, jobject y, jint width, jint height,
+    jint y_row_stride, jint y_pixel_stride, jint step);
+
 #ifdef __cplusplus
 }
 #endif
@@ -168,3 +196,93 @@ IMAGEUTILS_METHOD(convertRGB565ToYUV420SP)(
   env->ReleaseByteArrayElements(input, i, JNI_ABORT);
   env->ReleaseByteArrayElements(output, o, 0);
 }
+
+// The following operate on direct ByteBuffers, such as the planes of an
+// android.media.Image, so that no pixel data is copied into the Java heap.
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertYUV420PlanesToARGB8888)(
+    JNIEnv* env, jclass clazz, jobject y, jobject u, jobject v,
+    jintArray output, jint width, jint height, jint y_row_stride,
+    jint uv_row_stride, jint uv_pixel_stride) {
+  const uint8* const y_buff =
+      static_cast<const uint8*>(env->GetDirectBufferAddress(y));
+  const uint8* const u_buff =
+      static_cast<const uint8*>(env->GetDirectBufferAddress(u));
+  const uint8* const v_buff =
+      static_cast<const uint8*>(env->GetDirectBufferAddress(v));
+
+  jboolean outputCopy = JNI_FALSE;
+  jint* const o = env->GetIntArrayElements(output, &outputCopy);
+
+  ConvertYUV420ToARGB8888(y_buff, u_buff, v_buff, reinterpret_cast<uint32*>(o),
+                          width, height, y_row_stride, uv_row_stride,
+                          uv_pixel_stride);
+
+  env->ReleaseIntArrayElements(output, o, 0);
+}
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(extractLumaTiles)(
+    JNIEnv* env, jclass clazz, jobject y, jobject output, jint width,
+    jint height, jint y_row_stride, jint y_pixel_stride, jint cols, jint rows,
+    jint tile_size) {
+  const uint8* const y_buff =
+      static_cast<const uint8*>(env->GetDirectBufferAddress(y));
+  uint8* const o = static_cast<uint8*>(env->GetDirectBufferAddress(output));
+
+  ExtractLumaTiles(y_buff, width, height, y_row_stride, y_pixel_stride, o, cols,
+                   rows, tile_size);
+}
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(extractARGB8888Tiles)(
+    JNIEnv* env, jclass clazz, jintArray input, jobject output, jint width,
+    jint height, jint cols, jint rows, jint tile_size) {
+  jboolean inputCopy = JNI_FALSE;
+  jint* const i = env->GetIntArrayElements(input, &inputCopy);
+
+  uint8* const o = static_cast<uint8*>(env->GetDirectBufferAddress(output));
+
+  ExtractARGB8888Tiles(reinterpret_cast<uint32*>(i), width, height, o, cols,
+                       rows, tile_size);
+
+  env->ReleaseIntArrayElements(input, i, JNI_ABORT);
+}
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(downsampleTiles)(
+    JNIEnv* env, jclass clazz, jobject tiles, jint num_tiles, jint tile_size,
+    jbyteArray output, jint thumbnail_size) {
+  const uint8* const i =
+      static_cast<const uint8*>(env->GetDirectBufferAddress(tiles));
+
+  jboolean outputCopy = JNI_FALSE;
+  jbyte* const o = env->GetByteArrayElements(output, &outputCopy);
+
+  DownsampleTiles(i, num_tiles, tile_size, reinterpret_cast<uint8*>(o),
+                  thumbnail_size);
+
+  env->ReleaseByteArrayElements(output, o, 0);
+}
+
+JNIEXPORT void JNICALL IMAGEUTILS_METHOD(convertLumaTilesToARGB8888)(
+    JNIEnv* env, jclass clazz, jobject tiles, jintArray output, jint cols,
+    jint rows, jint tile_size) {
+  const uint8* const i =
+      static_cast<const uint8*>(env->GetDirectBufferAddress(tiles));
+
+  jboolean outputCopy = JNI_FALSE;
+  jint* const o = env->GetIntArrayElements(output, &outputCopy);
+
+  ConvertLumaTilesToARGB8888(i, reinterpret_cast<uint32*>(o), cols, rows,
+                             tile_size);
+
+  env->ReleaseIntArrayElements(output, o, 0);
+}
+
+JNIEXPORT jfloat JNICALL IMAGEUTILS_METHOD(computeFocusMeasure)(
+    JNIEnv* env, jclass clazz, jobject y, jint width, jint height,
+    jint y_row_stride, jint y_pixel_stride, jint step) {
+  const uint8* const y_buff =
+      static_cast<const uint8*>(env->GetDirectBufferAddress(y));
+
+  return ComputeFocusMeasure(y_buff, width, height, y_row_stride,
+                             y_pixel_stride, step);
+}
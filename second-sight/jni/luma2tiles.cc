@@ -0,0 +1,174 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+#include "second-sight/jni/luma2tiles.h"
+
+namespace {
+
+// Reads 8 bit samples from a plane with arbitrary row and pixel strides.
+class PlaneSampler {
+ public:
+  PlaneSampler(const uint8* const data, const int row_stride,
+               const int pixel_stride)
+      : data_(data), row_stride_(row_stride), pixel_stride_(pixel_stride) {}
+
+  inline const uint8* Row(const int y) const {
+    return data_ + y * row_stride_;
+  }
+
+  inline int Get(const uint8* const row, const int x) const {
+    return row[x * pixel_stride_];
+  }
+
+ private:
+  const uint8* const data_;
+  const int row_stride_;
+  const int pixel_stride_;
+};
+
+// Reads the red channel of packed ARGB 8888 pixels.
+class ARGBRedSampler {
+ public:
+  ARGBRedSampler(const uint32* const data, const int width)
+      : data_(data), width_(width) {}
+
+  inline const uint32* Row(const int y) const { return data_ + y * width_; }
+
+  inline int Get(const uint32* const row, const int x) const {
+    return (row[x] >> 16) & 0xff;
+  }
+
+ private:
+  const uint32* const data_;
+  const int width_;
+};
+
+// Maps a destination coordinate onto the source in 16.16 fixed point, with
+// pixel centers aligned, and splits it into the two neighbouring source
+// indices and an 8 bit interpolation weight.
+inline void MapCoordinate(const int dst, const int step, const int src_size,
+                          int* const lo, int* const hi, int* const weight) {
+  int pos = dst * step + step / 2 - 32768;
+  if (pos < 0) {
+    pos = 0;
+  }
+  *lo = pos >> 16;
+  if (*lo >= src_size - 1) {
+    *lo = src_size - 1;
+    *hi = src_size - 1;
+    *weight = 0;
+  } else {
+    *hi = *lo + 1;
+    *weight = (pos >> 8) & 0xff;
+  }
+}
+
+template <typename Sampler>
+void ResampleToTiles(const Sampler& sampler, const int width, const int height,
+                     uint8* const output, const int cols, const int rows,
+                     const int tile_size) {
+  const int grid_width = cols * tile_size;
+  const int grid_height = rows * tile_size;
+  const int step_x = (width << 16) / grid_width;
+  const int step_y = (height << 16) / grid_height;
+
+  uint8* out = output;
+  for (int row = 0; row < rows; ++row) {
+    for (int col = 0; col < cols; ++col) {
+      for (int i = 0; i < tile_size; ++i) {
+        int y0, y1, wy;
+        MapCoordinate(row * tile_size + i, step_y, height, &y0, &y1, &wy);
+        const auto* const src_row0 = sampler.Row(y0);
+        const auto* const src_row1 = sampler.Row(y1);
+
+        for (int j = 0; j < tile_size; ++j) {
+          int x0, x1, wx;
+          MapCoordinate(col * tile_size + j, step_x, width, &x0, &x1, &wx);
+
+          const int top = sampler.Get(src_row0, x0) * (256 - wx) +
+                          sampler.Get(src_row0, x1) * wx;
+          const int bottom = sampler.Get(src_row1, x0) * (256 - wx) +
+                             sampler.Get(src_row1, x1) * wx;
+          *out++ = (top * (256 - wy) + bottom * wy + 32768) >> 16;
+        }
+      }
+    }
+  }
+}
+
+}  // namespace
+
+void ExtractLumaTiles(const uint8* const y_data, const int width,
+                      const int height, const int y_row_stride,
+                      const int y_pixel_stride, uint8* const output,
+                      const int cols, const int rows, const int tile_size) {
+  ResampleToTiles(PlaneSampler(y_data, y_row_stride, y_pixel_stride), width,
+                  height, output, cols, rows, tile_size);
+}
+
+void ExtractARGB8888Tiles(const uint32* const input, const int width,
+                          const int height, uint8* const output,
+                          const int cols, const int rows,
+                          const int tile_size) {
+  ResampleToTiles(ARGBRedSampler(input, width), width, height, output, cols,
+                  rows, tile_size);
+}
+
+void DownsampleTiles(const uint8* const tiles, const int num_tiles,
+                     const int tile_size, uint8* const output,
+                     const int thumbnail_size) {
+  const int block_size = tile_size / thumbnail_size;
+  const int block_area = block_size * block_size;
+
+  const uint8* tile = tiles;
+  uint8* out = output;
+  for (int t = 0; t < num_tiles; ++t) {
+    for (int by = 0; by < thumbnail_size; ++by) {
+      for (int bx = 0; bx < thumbnail_size; ++bx) {
+        const uint8* block =
+            tile + by * block_size * tile_size + bx * block_size;
+        int sum = 0;
+        for (int i = 0; i < block_size; ++i) {
+          for (int j = 0; j < block_size; ++j) {
+            sum += block[j];
+          }
+          block += tile_size;
+        }
+        *out++ = (sum + block_area / 2) / block_area;
+      }
+    }
+    tile += tile_size * tile_size;
+  }
+}
+
+void ConvertLumaTilesToARGB8888(const uint8* const tiles, uint32* const output,
+                                const int cols, const int rows,
+                                const int tile_size) {
+  const int grid_width = cols * tile_size;
+
+  const uint8* in = tiles;
+  for (int row = 0; row < rows; ++row) {
+    for (int col = 0; col < cols; ++col) {
+      for (int i = 0; i < tile_size; ++i) {
+        uint32* out =
+            output + (row * tile_size + i) * grid_width + col * tile_size;
+        for (int j = 0; j < tile_size; ++j) {
+          const uint32 luma = *in++;
+          *out++ = 0xff000000 | (luma << 16) | (luma << 8) | luma;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+// Routines which cut the luminance plane of a camera frame into the square
+// grayscale tiles consumed by the text detector.
+
+#ifndef ORG_TENSORFLOW_JNI_IMAGEUTILS_LUMA2TILES_H_
+#define ORG_TENSORFLOW_JNI_IMAGEUTILS_LUMA2TILES_H_
+
+#include "tensorflow/core/platform/types.h"
+
+using namespace tensorflow;
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+// Bilinearly resamples the Y plane onto a grid of cols x rows tiles of
+// tile_size x tile_size pixels each and writes them out tile by tile, in
+// row-major tile order. Only the luminance samples are read, so no chroma
+// decoding takes place. The output must hold cols * rows * tile_size^2 bytes.
+void ExtractLumaTiles(const uint8* const y_data, const int width,
+                      const int height, const int y_row_stride,
+                      const int y_pixel_stride, uint8* const output,
+                      const int cols, const int rows, const int tile_size);
+
+// The same as above, but samples the red channel of packed ARGB 8888 input,
+// which is what the detector was fed by the Bitmap based pipeline.
+void ExtractARGB8888Tiles(const uint32* const input, const int width,
+                          const int height, uint8* const output,
+                          const int cols, const int rows, const int tile_size);
+
+// Shrinks every tile of a grid to a thumbnail_size x thumbnail_size thumbnail
+// by averaging blocks of tile_size / thumbnail_size pixels. The thumbnails are
+// cheap to compare between frames. tile_size must be a multiple of
+// thumbnail_size, and the output must hold num_tiles * thumbnail_size^2 bytes.
+void DownsampleTiles(const uint8* const tiles, const int num_tiles,
+                     const int tile_size, uint8* const output,
+                     const int thumbnail_size);
+
+// Reassembles a grid written by ExtractLumaTiles into a packed grayscale
+// ARGB 8888 image of (cols * tile_size) x (rows * tile_size) pixels.
+void ConvertLumaTilesToARGB8888(const uint8* const tiles, uint32* const output,
+                                const int cols, const int rows,
+                                const int tile_size);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif  // ORG_TENSORFLOW_JNI_IMAGEUTILS_LUMA2TILES_H_
@@ -22,8 +22,9 @@ limitations under the License.
 #include <jni.h>
 #include <pthread.h>
 #include <unistd.h>
-#include <queue>
-#include <sstream>
+#include <algorithm>
+#include <atomic>
+#include <memory>
 #include <string>
 
 #include "tensorflow/core/framework/tensor.h"
@@ -47,9 +48,21 @@ static bool g_compute_graph_initialized = false;
 static int g_tensorflow_input_size;  // The image size for the mognet input.
 static int g_image_mean;  // The image mean.
 
-// For basic benchmarking.
-static int g_num_runs = 0;
-static int64 g_timing_total_us = 0;
+// Maps every 8 bit luminance value to its normalized network input, so that
+// the (x - mean) / 80 normalization costs a single lookup per pixel.
+static float g_luma_to_input[256];
+
+// The output class whose score is reported by the batched tile classifier.
+static int g_text_label_index = 1;
+
+// Tiles are classified at most this many per run of the graph, which bounds
+// the input tensor every inference context keeps to 2 MB at 128x128 tiles.
+static const int kMaxBatchSize = 32;
+
+// For basic benchmarking. Several inference workers may run the session at
+// once, so these are updated atomically.
+static std::atomic<int> g_num_runs(0);
+static std::atomic<int64> g_timing_total_us(0);
 
 inline static int64 CurrentThreadTimeUs() {
   struct timeval tv;
@@ -57,11 +70,69 @@ inline static int64 CurrentThreadTimeUs() {
   return tv.tv_sec * 1000000 + tv.tv_usec;
 }
 
+namespace {
+  // Everything a thread needs to run the graph, kept from run to run so that
+  // steady state inference does not allocate apart from the output tensors
+  // created by the session itself. Each inference thread holds its own
+  // context while it runs the graph.
+  struct InferenceContext {
+    InferenceContext()
+      : input(tensorflow::DT_FLOAT,
+              tensorflow::TensorShape({
+                kMaxBatchSize, g_tensorflow_input_size,
+                g_tensorflow_input_size, 1})),
+        feeds({{"input:0", tensorflow::Tensor()}}),
+        fetches({"output:0"}) {}
+
+    // Returns the input for a batch of the given size, at most kMaxBatchSize:
+    // the first batch_size images of the input tensor, sharing its buffer.
+    tensorflow::Tensor GetInput(const int batch_size) {
+      return input.Slice(0, batch_size);
+    }
+
+    tensorflow::Tensor input;
+    std::vector<std::pair<std::string, tensorflow::Tensor> > feeds;
+    const std::vector<std::string> fetches;
+    std::vector<tensorflow::Tensor> outputs;
+  };
+
+  // Contexts not currently held by any thread.
+  std::vector<std::unique_ptr<InferenceContext> > g_free_contexts;
+  mutex g_free_contexts_mutex;
+
+  // Takes a free context, or a new one if all are in use, and gives it back
+  // when it goes out of scope.
+  class ScopedInferenceContext {
+   public:
+    ScopedInferenceContext() {
+      mutex_lock lock(g_free_contexts_mutex);
+      if (g_free_contexts.empty()) {
+        context_.reset(new InferenceContext());
+      } else {
+        context_ = std::move(g_free_contexts.back());
+        g_free_contexts.pop_back();
+      }
+    }
+
+    ~ScopedInferenceContext() {
+      mutex_lock lock(g_free_contexts_mutex);
+      g_free_contexts.push_back(std::move(context_));
+    }
+
+    InferenceContext* operator->() { return context_.get(); }
+    InferenceContext* get() { return context_.get(); }
+
+   private:
+    std::unique_ptr<InferenceContext> context_;
+  };
+}  // namespace
+
 JNIEXPORT jint JNICALL
   TENSORFLOW_METHOD(initializeTensorflow)(
   JNIEnv* env, jobject thiz, jobject java_asset_manager,
   jstring model, jstring labels,
-  jint num_classes, jint mognet_input_size, jint image_mean) {
+  jint num_classes, jint mognet_input_size, jint image_mean,
+  jint intra_op_threads, jint inter_op_threads) {
   g_num_runs = 0;
   g_timing_total_us = 0;
 
@@ -76,6 +147,9 @@ JNIEXPORT jint JNICALL
 
   g_tensorflow_input_size = mognet_input_size;
   g_image_mean = image_mean;
+  for (int i = 0; i < 256; ++i) {
+    g_luma_to_input[i] = (static_cast<float>(i) - g_image_mean) / 80;
+  }
 
   LOG(INFO) << "Loading Tensorflow.";
 
@@ -84,6 +158,17 @@ JNIEXPORT jint JNICALL
   tensorflow::ConfigProto& config = options.config;
   LOG(INFO) << "Got config, " << config.device_count_size() << " devices";
 
+  // Zero leaves the choice to Tensorflow, which uses one thread per core.
+  if (intra_op_threads > 0) {
+    config.set_intra_op_parallelism_threads(intra_op_threads);
+  }
+  if (inter_op_threads > 0) {
+    config.set_inter_op_parallelism_threads(inter_op_threads);
+  }
+  LOG(INFO) << "Using " << config.intra_op_parallelism_threads()
+    << " intra op and " << config.inter_op_parallelism_threads()
+    << " inter op threads.";
+
   session.reset(tensorflow::NewSession(options));
   LOG(INFO) << "Session created.";
 
@@ -112,11 +197,37 @@ JNIEXPORT jint JNICALL
   ReadFileToVector(asset_manager, labels_cstr, &g_label_strings);
   LOG(INFO) << g_label_strings.size() << " label strings loaded from: "
     << labels_cstr;
+  for (int i = 0; i < g_label_strings.size(); ++i) {
+    if (g_label_strings[i] == "text") {
+      g_text_label_index = i;
+    }
+  }
   g_compute_graph_initialized = true;
 
   return 0;
 }
 
+JNIEXPORT void JNICALL
+  TENSORFLOW_METHOD(closeTensorflow)(JNIEnv* env, jobject thiz) {
+  if (!g_compute_graph_initialized) {
+    return;
+  }
+
+  LOG(INFO) << "Closing Tensorflow session.";
+  tensorflow::Status s = session->Close();
+  if (!s.ok()) {
+    LOG(ERROR) << "Error closing session: " << s;
+  }
+  session.reset();
+  g_label_strings.clear();
+  {
+    // The input tensors are sized for this session's input.
+    mutex_lock lock(g_free_contexts_mutex);
+    g_free_contexts.clear();
+  }
+  g_compute_graph_initialized = false;
+}
+
 namespace {
   typedef struct {
     uint8 red;
@@ -126,77 +237,55 @@ namespace {
   } RGBA;
 }  // namespace
 
-// Returns the top N confidence values over threshold in the provided vector,
-// sorted by confidence in descending order.
-static void GetTopN(
-  const Eigen::TensorMap<Eigen::Tensor<float, 1, Eigen::RowMajor>,
-  Eigen::Aligned>& prediction,
-  const int num_results, const float threshold,
-  std::vector<std::pair<float, int> >* top_results) {
-  // Will contain top N results in ascending order.
-  std::priority_queue<std::pair<float, int>,
-  std::vector<std::pair<float, int> >,
-  std::greater<std::pair<float, int> > > top_result_pq;
-
-  const int count = prediction.size();
+// Writes the top N confidence values over threshold and their indices to the
+// provided arrays, sorted by confidence in descending order. Returns the number
+// of values written. Works in place, as N is tiny.
+static int GetTopN(const float* const prediction, const int count,
+                   const int num_results, const float threshold,
+                   int* const top_indices, float* const top_values) {
+  if (num_results <= 0) {
+    return 0;
+  }
+
+  int num_top = 0;
   for (int i = 0; i < count; ++i) {
-    const float value = prediction(i);
+    const float value = prediction[i];
 
     // Only add it if it beats the threshold and has a chance at being in
     // the top N.
-    if (value < threshold) {
+    if (value < threshold ||
+        (num_top == num_results && value <= top_values[num_top - 1])) {
       continue;
     }
 
-    top_result_pq.push(std::pair<float, int>(value, i));
-
-    // If at capacity, kick the smallest value out.
-    if (top_result_pq.size() > num_results) {
-      top_result_pq.pop();
+    // Shift smaller values down, kicking the smallest one out if at capacity.
+    int pos = num_top < num_results ? num_top++ : num_top - 1;
+    while (pos > 0 && top_values[pos - 1] < value) {
+      top_values[pos] = top_values[pos - 1];
+      top_indices[pos] = top_indices[pos - 1];
+      --pos;
     }
+    top_values[pos] = value;
+    top_indices[pos] = i;
   }
-
-  // Copy to output vector and reverse into descending order.
-  while (!top_result_pq.empty()) {
-    top_results->push_back(top_result_pq.top());
-    top_result_pq.pop();
-  }
-  std::reverse(top_results->begin(), top_results->end());
+  return num_top;
 }
 
-static std::string ClassifyImage(const RGBA* const bitmap_src,
-                                 const int in_stride,
-                                 const int width, const int height) {
+// Runs the graph once on the given, already filled input tensor of the
+// context. The results are left in context->outputs.
+static tensorflow::Status RunGraph(InferenceContext* const context,
+                                   const tensorflow::Tensor& input_tensor) {
   ++g_num_runs;
 
-  // Create input tensor
-  tensorflow::Tensor input_tensor(
-    tensorflow::DT_FLOAT,
-    tensorflow::TensorShape({
-      1, g_tensorflow_input_size, g_tensorflow_input_size, 1}));
-
-  auto input_tensor_mapped = input_tensor.tensor<float, 4>();
-
-  LOG(INFO) << "Tensorflow: Copying Data.";
-  for (int i = 0; i < g_tensorflow_input_size; ++i) {
-    const RGBA* src = bitmap_src + i * g_tensorflow_input_size;
-    for (int j = 0; j < g_tensorflow_input_size; ++j) {
-      input_tensor_mapped(0, i, j, 0) =
-        (static_cast<float>(src->red) - g_image_mean) / 80;
-      ++src;
-    }
-  }
-
-  std::vector<std::pair<std::string, tensorflow::Tensor> > input_tensors(
-    {{"input:0", input_tensor}});
+  // Shares the buffer of the input tensor rather than copying it.
+  context->feeds[0].second = input_tensor;
+  context->outputs.clear();
 
   VLOG(0) << "Start computing.";
-  std::vector<tensorflow::Tensor> output_tensors;
-  std::vector<std::string> output_names({"output:0"});
 
   const int64 start_time = CurrentThreadTimeUs();
   tensorflow::Status s =
-    session->Run(input_tensors, output_names, {}, &output_tensors);
+    session->Run(context->feeds, context->fetches, {}, &context->outputs);
   const int64 end_time = CurrentThreadTimeUs();
 
   const int64 elapsed_time_inf = end_time - start_time;
@@ -207,80 +296,224 @@ static std::string ClassifyImage(const RGBA* const bitmap_src,
 
   if (!s.ok()) {
     LOG(ERROR) << "Error during inference: " << s;
-    return "";
+  }
+  return s;
+}
+
+// Runs the graph on the already filled single image input of the context and
+// writes the class indices and scores of up to max_results top results, in
+// descending order of score. Returns the number of results, or -1 if inference
+// failed.
+static int RunClassifier(InferenceContext* const context,
+                         const int max_results, int* const classes,
+                         float* const scores) {
+  if (!RunGraph(context, context->GetInput(1)).ok()) {
+    return -1;
   }
 
-  VLOG(0) << "Reading from layer " << output_names[0];
-  tensorflow::Tensor* output = &output_tensors[0];
-  const int kNumResults = 5;
+  const tensorflow::Tensor& output = context->outputs[0];
   const float kThreshold = 0.1f;
-  std::vector<std::pair<float, int> > top_results;
-  GetTopN(output->flat<float>(), kNumResults, kThreshold, &top_results);
-
-  std::stringstream ss;
-  ss.precision(3);
-  for (const auto& result : top_results) {
-    const float confidence = result.first;
-    const int index = result.second;
-
-    ss << index << " " << confidence << " ";
-
-    // Write out the result as a string
-    if (index < g_label_strings.size()) {
-      // just for safety: theoretically, the output is under 1000 unless there
-      // is some numerical issues leading to a wrong prediction.
-      ss << g_label_strings[index];
-    } else {
-      ss << "Prediction: " << index;
+  const int num_results = GetTopN(
+    output.flat<float>().data(), output.NumElements(), max_results,
+    kThreshold, classes, scores);
+
+  VLOG(0) << num_results << " predictions, best is class "
+    << (num_results > 0 ? classes[0] : -1);
+  return num_results;
+}
+
+static int ClassifyImage(const RGBA* const bitmap_src,
+                         const int in_stride,
+                         const int width, const int height,
+                         const int max_results, int* const classes,
+                         float* const scores) {
+  ScopedInferenceContext context;
+
+  // Fill the input tensor in place.
+  tensorflow::Tensor input_tensor = context->GetInput(1);
+  auto input_tensor_mapped = input_tensor.tensor<float, 4>();
+
+  VLOG(0) << "Tensorflow: Copying Data.";
+  for (int i = 0; i < g_tensorflow_input_size; ++i) {
+    const RGBA* src = bitmap_src + i * g_tensorflow_input_size;
+    for (int j = 0; j < g_tensorflow_input_size; ++j) {
+      input_tensor_mapped(0, i, j, 0) = g_luma_to_input[src->red];
+      ++src;
+    }
+  }
+
+  return RunClassifier(context.get(), max_results, classes, scores);
+}
+
+// Classifies a single tile of 8 bit luminance samples, as produced by
+// ImageUtils.extractLumaTiles. The samples are normalized while they are
+// written into the input tensor.
+static int ClassifyLuma(const uint8* const luma_src,
+                        const int max_results, int* const classes,
+                        float* const scores) {
+  ScopedInferenceContext context;
+
+  float* dst = context->GetInput(1).flat<float>().data();
+  const int num_pixels = g_tensorflow_input_size * g_tensorflow_input_size;
+  for (int i = 0; i < num_pixels; ++i) {
+    dst[i] = g_luma_to_input[luma_src[i]];
+  }
+
+  return RunClassifier(context.get(), max_results, classes, scores);
+}
+
+// Classifies the luminance tiles at the given indices of a tile grid with
+// runs of the graph on {n, size, size, 1} inputs of up to kMaxBatchSize
+// tiles, and writes the text score of tile tile_indices[i] to
+// confidences[tile_indices[i]]. Returns false if inference failed.
+static bool ClassifyLumaTiles(const uint8* const luma_src,
+                              const int* const tile_indices,
+                              const int num_tiles, float* const confidences) {
+  ScopedInferenceContext context;
+  const int tile_length = g_tensorflow_input_size * g_tensorflow_input_size;
+
+  for (int first = 0; first < num_tiles; first += kMaxBatchSize) {
+    const int batch_size = std::min(kMaxBatchSize, num_tiles - first);
+    const int* const batch = tile_indices + first;
+    tensorflow::Tensor input_tensor = context->GetInput(batch_size);
+
+    float* dst = input_tensor.flat<float>().data();
+    for (int t = 0; t < batch_size; ++t) {
+      const uint8* const src = luma_src + batch[t] * tile_length;
+      for (int i = 0; i < tile_length; ++i) {
+        *dst++ = g_luma_to_input[src[i]];
+      }
+    }
+
+    if (!RunGraph(context.get(), input_tensor).ok()) {
+      return false;
+    }
+
+    // Read the scores straight from the output buffer.
+    const tensorflow::Tensor& output = context->outputs[0];
+    const int num_classes = output.dim_size(1);
+    const float* const scores = output.flat<float>().data();
+    for (int t = 0; t < batch_size; ++t) {
+      confidences[batch[t]] = scores[t * num_classes + g_text_label_index];
     }
+  }
+  return true;
+}
 
-    ss << "\n";
+JNIEXPORT jobjectArray JNICALL
+  TENSORFLOW_METHOD(getLabels)(JNIEnv* env, jobject thiz) {
+  jobjectArray labels = env->NewObjectArray(
+    g_label_strings.size(), env->FindClass("java/lang/String"), NULL);
+  for (int i = 0; i < g_label_strings.size(); ++i) {
+    jstring label = env->NewStringUTF(g_label_strings[i].c_str());
+    env->SetObjectArrayElement(labels, i, label);
+    env->DeleteLocalRef(label);
   }
+  return labels;
+}
 
-  LOG(INFO) << "Predictions: " << ss.str();
-  return ss.str();
+// Runs one of the classifiers above with the output arrays of the Java caller.
+// At most as many results as fit into both arrays are written.
+template <typename Classify>
+static jint ClassifyInto(JNIEnv* env, jintArray classes, jfloatArray scores,
+                         const Classify& classify) {
+  const int max_results = std::min(env->GetArrayLength(classes),
+                                   env->GetArrayLength(scores));
+
+  jboolean classesCopy = JNI_FALSE;
+  jint* const c = env->GetIntArrayElements(classes, &classesCopy);
+  jboolean scoresCopy = JNI_FALSE;
+  jfloat* const s = env->GetFloatArrayElements(scores, &scoresCopy);
+
+  const int num_results = classify(max_results, c, s);
+
+  const int mode = num_results > 0 ? 0 : JNI_ABORT;
+  env->ReleaseIntArrayElements(classes, c, mode);
+  env->ReleaseFloatArrayElements(scores, s, mode);
+
+  return num_results;
 }
 
-JNIEXPORT jstring JNICALL
+JNIEXPORT jint JNICALL
   TENSORFLOW_METHOD(classifyImageRgb)(
-  JNIEnv* env, jobject thiz, jintArray image, jint width, jint height) {
+  JNIEnv* env, jobject thiz, jintArray image, jint width, jint height,
+  jintArray classes, jfloatArray scores) {
   // Copy image into currFrame.
   jboolean iCopied = JNI_FALSE;
   jint* pixels = env->GetIntArrayElements(image, &iCopied);
 
-  std::string result = ClassifyImage(
-    reinterpret_cast<const RGBA*>(pixels), width * 4, width, height);
+  const jint num_results = ClassifyInto(env, classes, scores,
+    [&](int max_results, int* c, float* s) {
+      return ClassifyImage(reinterpret_cast<const RGBA*>(pixels), width * 4,
+                           width, height, max_results, c, s);
+    });
 
   env->ReleaseIntArrayElements(image, pixels, JNI_ABORT);
 
-  return env->NewStringUTF(result.c_str());
+  return num_results;
 }
 
-JNIEXPORT jstring JNICALL
+JNIEXPORT jint JNICALL
   TENSORFLOW_METHOD(classifyImageBmp)(
-  JNIEnv* env, jobject thiz, jobject bitmap) {
+  JNIEnv* env, jobject thiz, jobject bitmap,
+  jintArray classes, jfloatArray scores) {
   // Obtains the bitmap information.
   AndroidBitmapInfo info;
   CHECK_EQ(AndroidBitmap_getInfo(env, bitmap, &info),
            ANDROID_BITMAP_RESULT_SUCCESS);
-  void* pixels;
-  CHECK_EQ(AndroidBitmap_lockPixels(env, bitmap, &pixels),
-           ANDROID_BITMAP_RESULT_SUCCESS);
-  LOG(INFO) << "Height: " << info.height;
-  LOG(INFO) << "Width: " << info.width;
-  LOG(INFO) << "Stride: " << info.stride;
   // TODO(jiayq): deal with other formats if necessary.
   if (info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
-    return env->NewStringUTF(
-      "Error: Android system is not using RGBA_8888 in default.");
+    LOG(ERROR) << "Android system is not using RGBA_8888 in default.";
+    return -1;
   }
+  void* pixels;
+  CHECK_EQ(AndroidBitmap_lockPixels(env, bitmap, &pixels),
+           ANDROID_BITMAP_RESULT_SUCCESS);
 
-  std::string result = ClassifyImage(
-    static_cast<const RGBA*>(pixels), info.stride, info.width, info.height);
+  const jint num_results = ClassifyInto(env, classes, scores,
+    [&](int max_results, int* c, float* s) {
+      return ClassifyImage(static_cast<const RGBA*>(pixels), info.stride,
+                           info.width, info.height, max_results, c, s);
+    });
 
   // Finally, unlock the pixels
   CHECK_EQ(AndroidBitmap_unlockPixels(env, bitmap),
            ANDROID_BITMAP_RESULT_SUCCESS);
 
-  return env->NewStringUTF(result.c_str());
+  return num_results;
+}
+
+JNIEXPORT jint JNICALL
+  TENSORFLOW_METHOD(classifyImageLuma)(
+  JNIEnv* env, jobject thiz, jobject tiles, jint offset,
+  jintArray classes, jfloatArray scores) {
+  // The tiles live in a direct buffer, so they are read in place.
+  const uint8* const luma =
+    static_cast<const uint8*>(env->GetDirectBufferAddress(tiles));
+
+  return ClassifyInto(env, classes, scores,
+    [&](int max_results, int* c, float* s) {
+      return ClassifyLuma(luma + offset, max_results, c, s);
+    });
+}
+
+JNIEXPORT jint JNICALL
+  TENSORFLOW_METHOD(classifyLumaTiles)(
+  JNIEnv* env, jobject thiz, jobject tiles, jintArray tile_indices,
+  jint num_tiles, jfloatArray confidences) {
+  const uint8* const luma =
+    static_cast<const uint8*>(env->GetDirectBufferAddress(tiles));
+
+  jboolean inputCopy = JNI_FALSE;
+  jint* const i = env->GetIntArrayElements(tile_indices, &inputCopy);
+
+  jboolean outputCopy = JNI_FALSE;
+  jfloat* const o = env->GetFloatArrayElements(confidences, &outputCopy);
+
+  const bool success = ClassifyLumaTiles(luma, i, num_tiles, o);
+
+  env->ReleaseIntArrayElements(tile_indices, i, JNI_ABORT);
+  env->ReleaseFloatArrayElements(confidences, o, success ? 0 : JNI_ABORT);
+
+  return success ? 0 : -1;
 }
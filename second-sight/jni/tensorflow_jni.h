@@ -34,15 +34,34 @@ JNIEXPORT jint JNICALL
 TENSORFLOW_METHOD(initializeTensorflow)(
     JNIEnv* env, jobject thiz, jobject java_asset_manager,
     jstring model, jstring labels,
-    jint num_classes, jint mognet_input_size, jint image_mean);
+    jint num_classes, jint mognet_input_size, jint image_mean,
+    jint intra_op_threads, jint inter_op_threads);
 
-JNIEXPORT jstring JNICALL
+JNIEXPORT void JNICALL
+TENSORFLOW_METHOD(closeTensorflow)(JNIEnv* env, jobject thiz);
+
+JNIEXPORT jobjectArray JNICALL
+TENSORFLOW_METHOD(getLabels)(JNIEnv* env, jobject thiz);
+
+JNIEXPORT jint JNICALL
 TENSORFLOW_METHOD(classifyImageBmp)(
-    JNIEnv* env, jobject thiz, jobject bitmap);
+    JNIEnv* env, jobject thiz, jobject bitmap,
+    jintArray classes, jfloatArray scores);
 
-JNIEXPORT jstring JNICALL
+JNIEXPORT jint JNICALL
 TENSORFLOW_METHOD(classifyImageRgb)(
-    JNIEnv* env, jobject thiz, jintArray image, jint width, jint height);
+    JNIEnv* env, jobject thiz, jintArray image, jint width, jint height,
+    jintArray classes, jfloatArray scores);
+
+JNIEXPORT jint JNICALL
+TENSORFLOW_METHOD(classifyImageLuma)(
+    JNIEnv* env, jobject thiz, jobject tiles, jint offset,
+    jintArray classes, jfloatArray scores);
+
+JNIEXPORT jint JNICALL
+TENSORFLOW_METHOD(classifyLumaTiles)(
+    JNIEnv* env, jobject thiz, jobject tiles, jintArray tile_indices,
+    jint num_tiles, jfloatArray confidences);
 
 #ifdef __cplusplus
 }  // extern "C"
@@ -79,7 +79,7 @@ public class AutoFitTextureView extends TextureView implements OnTouchListener {
   @Override
   public boolean onTouch(View v, MotionEvent event) {
     CameraActivity activity = (CameraActivity) getContext();
-    activity.tts.stop();
+    activity.speech.flush();
     
     return true;
   }
@@ -21,10 +21,59 @@ import android.os.Bundle;
 import android.speech.tts.TextToSpeech;
 import android.view.WindowManager;
 
+import com.martinbede.secondsight.env.Logger;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 public class CameraActivity extends Activity {
+  private static final Logger LOGGER = new Logger();
+
+  // Point this to a local stand-in server to test without the real service.
+  private static final String VISION_ROOT_URL = VisionClient.DEFAULT_ROOT_URL;
+
+  // A plain HTTP OCR server to race against Cloud Vision, or null. This is not an on-device
+  // engine: there is no OCR library in this build, so the second engine is a server on the same
+  // network or machine, such as tools/ocr_standin.py. Without it Cloud Vision is used alone.
+  private static final String HTTP_OCR_URL = null;
+  private static final int HTTP_OCR_TIMEOUT_MS = 5000;
+
+  // How many OCR engines read every crop at once, when there is more than one. An engine that
+  // failed is ranked as if it took OCR_TIMEOUT_MS for OCR_FAILURE_PENALTY_MS, or until it answers.
+  private static final int OCR_RACE_WIDTH = 2;
+  private static final long OCR_FAILURE_PENALTY_MS = 30000;
+
+  // At most OCR_MAX_IN_FLIGHT requests run at once, and each must finish within
+  // OCR_TIMEOUT_MS to be read aloud.
+  private static final int OCR_MAX_IN_FLIGHT = 3;
+  private static final int OCR_MAX_QUEUED = 6;
+  private static final long OCR_TIMEOUT_MS = 8000;
+
+  // OCR results are kept on disk for OCR_STORE_MAX_AGE_MS, at most OCR_STORE_MAX_ENTRIES of them.
+  private static final String OCR_STORE_FILE = "ocr_store.bin";
+  private static final int OCR_STORE_MAX_ENTRIES = 2048;
+  private static final long OCR_STORE_MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+  // Texts are read a sentence at a time, with sentences longer than SPEECH_MAX_CHUNK_LENGTH
+  // characters split further. The engine is given SPEECH_LOOKAHEAD chunks ahead of time.
+  private static final int SPEECH_MAX_CHUNK_LENGTH = 120;
+  private static final int SPEECH_LOOKAHEAD = 2;
+
+  // Spoken on every detection, and instead of a text that was just read. Rendered to audio files
+  // up front, so that they are played without waiting for the synthesizer.
+  public static final String TEXT_DETECTED_PROMPT = "Text detected...";
+  public static final String SAME_TEXT_PROMPT = "Same text.";
+
   public TextToSpeech tts;
+  public SpeechScheduler speech;
+  public VisionClient visionClient;
+  public OcrEngine ocrEngine;
+  public OcrScheduler ocrScheduler;
+  public OcrStore ocrStore;
   
   @Override
   protected void onCreate(final Bundle savedInstanceState) {
@@ -36,9 +85,22 @@ public class CameraActivity extends Activity {
       public void onInit(int status) {
         if(status != TextToSpeech.ERROR) {
           tts.setLanguage(Locale.UK);
+          speech.warmUp();
+          speech.prerender(getCacheDir(), Locale.UK, TEXT_DETECTED_PROMPT, SAME_TEXT_PROMPT);
         }
       }
     });
+    speech = new SpeechScheduler(tts, SPEECH_MAX_CHUNK_LENGTH, SPEECH_LOOKAHEAD);
+    tts.setOnUtteranceProgressListener(speech);
+
+    visionClient = new VisionClient(getString(R.string.CloudVisionApiKey), VISION_ROOT_URL);
+    ocrEngine = createOcrEngine();
+    ocrScheduler = new OcrScheduler(ocrEngine, OCR_MAX_IN_FLIGHT, OCR_MAX_QUEUED, OCR_TIMEOUT_MS);
+    ocrStore =
+        new OcrStore(
+            new File(getFilesDir(), OCR_STORE_FILE),
+            OCR_STORE_MAX_ENTRIES, OCR_STORE_MAX_AGE_MS);
+    ocrStore.open();
 
     setContentView(R.layout.activity_camera);
     if (null == savedInstanceState) {
@@ -51,8 +113,8 @@ public class CameraActivity extends Activity {
   
   @Override
   public void onPause() {
-    if (tts != null) {
-      tts.stop();
+    if (speech != null) {
+      speech.flush();
     }
     
     super.onPause();
@@ -63,7 +125,38 @@ public class CameraActivity extends Activity {
     if (tts != null) {
       tts.shutdown();
     }
+    if (ocrScheduler != null) {
+      ocrScheduler.close();
+    }
+    if (ocrEngine != null) {
+      ocrEngine.close();
+    }
+    if (visionClient != null) {
+      visionClient.close();
+    }
+    if (ocrStore != null) {
+      ocrStore.close();
+    }
     
     super.onDestroy();
   }
+
+  private OcrEngine createOcrEngine() {
+    final List<OcrEngine> engines = new ArrayList<OcrEngine>();
+    engines.add(new CloudVisionOcrEngine("cloud", visionClient));
+    if (HTTP_OCR_URL != null) {
+      try {
+        engines.add(new HttpOcrEngine("http", new URL(HTTP_OCR_URL), HTTP_OCR_TIMEOUT_MS));
+      } catch (final MalformedURLException e) {
+        LOGGER.e(e, "Invalid HTTP OCR URL %s", HTTP_OCR_URL);
+      }
+    }
+    if (engines.size() == 1) {
+      // Nothing to race against.
+      LOGGER.i("Reading text with %s only", engines.get(0).getName());
+      return engines.get(0);
+    }
+    return new RacingOcrEngine(
+        engines, OCR_RACE_WIDTH, OCR_TIMEOUT_MS, OCR_FAILURE_PENALTY_MS);
+  }
 }
@@ -69,8 +69,11 @@ public interface Classifier {
       return confidence;
     }
 
+    /**
+     * Returns a copy of the location, or null if there is none.
+     */
     public RectF getLocation() {
-      return new RectF(location);
+      return location != null ? new RectF(location) : null;
     }
 
     @Override
@@ -0,0 +1,135 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import com.google.api.services.vision.v1.model.AnnotateImageRequest;
+import com.google.api.services.vision.v1.model.AnnotateImageResponse;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
+import com.google.api.services.vision.v1.model.EntityAnnotation;
+import com.google.api.services.vision.v1.model.Feature;
+import com.google.api.services.vision.v1.model.Image;
+import com.google.api.services.vision.v1.model.Status;
+
+import com.martinbede.secondsight.env.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads text with the TEXT_DETECTION feature of Cloud Vision, or of a stand-in server that speaks
+ * the same protocol, depending on where the {@link VisionClient} points. All images of a call are
+ * sent in a single batch request. An image the service reports an error for is read as null; if
+ * all of them fail, the request does.
+ */
+public class CloudVisionOcrEngine implements OcrEngine {
+  private static final Logger LOGGER = new Logger();
+
+  private static final int MAX_RESULTS = 10;
+
+  private final String name;
+  private final VisionClient client;
+
+  public CloudVisionOcrEngine(final String name, final VisionClient client) {
+    this.name = name;
+    this.client = client;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public List<String> recognize(final List<UploadEncoder.EncodedImage> images)
+      throws IOException {
+    // All images go out in one request, and the responses come back in the same order.
+    final List<AnnotateImageRequest> requests = new ArrayList<AnnotateImageRequest>(images.size());
+    for (final UploadEncoder.EncodedImage image : images) {
+      requests.add(createRequest(image));
+    }
+    final BatchAnnotateImagesRequest batchAnnotateImagesRequest = new BatchAnnotateImagesRequest();
+    batchAnnotateImagesRequest.setRequests(requests);
+
+    final List<AnnotateImageResponse> responses =
+        client.annotate(batchAnnotateImagesRequest).getResponses();
+    if (responses == null || responses.size() != images.size()) {
+      throw new IOException(
+          "Expected " + images.size() + " responses, got "
+              + (responses == null ? 0 : responses.size()));
+    }
+
+    final List<String> texts = new ArrayList<String>(images.size());
+    Status lastError = null;
+    for (int i = 0; i < responses.size(); ++i) {
+      final AnnotateImageResponse response = responses.get(i);
+      final Status error = response.getError();
+      if (error != null) {
+        LOGGER.w("%s could not read image %d of %d: %s",
+                 name, i + 1, images.size(), error.getMessage());
+        lastError = error;
+        texts.add(null);
+      } else {
+        texts.add(toText(response));
+      }
+    }
+    if (lastError != null && !hasText(texts)) {
+      throw new IOException("No image could be read: " + lastError.getMessage());
+    }
+    return texts;
+  }
+
+  @Override
+  public void close() {
+    // The client belongs to the activity.
+  }
+
+  private static AnnotateImageRequest createRequest(final UploadEncoder.EncodedImage image) {
+    final AnnotateImageRequest annotateImageRequest = new AnnotateImageRequest();
+
+    // The image is already JPEG and base64 encoded.
+    final Image content = new Image();
+    content.setContent(image.content);
+    annotateImageRequest.setImage(content);
+
+    final Feature textDetection = new Feature();
+    textDetection.setType("TEXT_DETECTION");
+    textDetection.setMaxResults(MAX_RESULTS);
+    final List<Feature> features = new ArrayList<Feature>(1);
+    features.add(textDetection);
+    annotateImageRequest.setFeatures(features);
+    return annotateImageRequest;
+  }
+
+  private static boolean hasText(final List<String> texts) {
+    for (final String text : texts) {
+      if (text != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String toText(final AnnotateImageResponse response) {
+    // The first annotation holds all of the text, the others single words.
+    final List<EntityAnnotation> texts = response.getTextAnnotations();
+    if (texts == null || texts.isEmpty()) {
+      return "";
+    }
+    final String text = texts.get(0).getDescription();
+    return text != null ? text : "";
+  }
+}
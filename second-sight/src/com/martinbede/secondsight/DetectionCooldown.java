@@ -0,0 +1,79 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+/**
+ * Timestamp driven cooldown that follows an announced detection. While cooling down, further
+ * announcements and cloud calls are suppressed, but the detector keeps running at a reduced rate
+ * so that it holds warm state and can react as soon as the cooldown ends. Not thread-safe; meant
+ * to be owned by the inference thread.
+ */
+public class DetectionCooldown {
+  private final long cooldownMs;
+  private final long cooldownDetectorIntervalMs;
+
+  private long cooldownEndMs = Long.MIN_VALUE;
+  private long lastDetectorRunMs = Long.MIN_VALUE;
+
+  /**
+   * @param cooldownMs How long announcements are suppressed after one was made.
+   * @param cooldownDetectorIntervalMs The minimum time between detector runs while cooling down.
+   *     Zero keeps the detector running at full rate.
+   */
+  public DetectionCooldown(final long cooldownMs, final long cooldownDetectorIntervalMs) {
+    this.cooldownMs = cooldownMs;
+    this.cooldownDetectorIntervalMs = cooldownDetectorIntervalMs;
+  }
+
+  public boolean isCoolingDown(final long nowMs) {
+    return nowMs < cooldownEndMs;
+  }
+
+  /**
+   * Returns whether the detector should run on a frame arriving at nowMs, and if so records the
+   * run.
+   */
+  public boolean shouldRunDetector(final long nowMs) {
+    if (isCoolingDown(nowMs)
+        && lastDetectorRunMs != Long.MIN_VALUE
+        && nowMs - lastDetectorRunMs < cooldownDetectorIntervalMs) {
+      return false;
+    }
+    lastDetectorRunMs = nowMs;
+    return true;
+  }
+
+  /**
+   * Returns whether a detection made at nowMs may be announced.
+   */
+  public boolean canAnnounce(final long nowMs) {
+    return !isCoolingDown(nowMs);
+  }
+
+  /**
+   * Starts the cooldown after a detection was announced at nowMs.
+   */
+  public void onAnnounced(final long nowMs) {
+    cooldownEndMs = nowMs + cooldownMs;
+  }
+
+  /**
+   * Returns how much of the cooldown is left at nowMs.
+   */
+  public long getRemainingMs(final long nowMs) {
+    return Math.max(0, cooldownEndMs - nowMs);
+  }
+}
@@ -0,0 +1,45 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single-slot, lock-free handoff between a producer and a consumer thread where the latest
+ * frame wins. Publishing never blocks: a frame that was not taken in time is handed back to the
+ * producer so that its buffers can be recycled.
+ */
+public class FrameMailbox<T> {
+  private final AtomicReference<T> slot = new AtomicReference<T>();
+
+  /**
+   * Makes frame the next one to be taken.
+   *
+   * @return the frame it displaced, which was never taken, or null.
+   */
+  public T publish(final T frame) {
+    return slot.getAndSet(frame);
+  }
+
+  /**
+   * Takes the most recently published frame.
+   *
+   * @return the frame, or null if nothing new was published since the last call.
+   */
+  public T take() {
+    return slot.getAndSet(null);
+  }
+}
@@ -0,0 +1,74 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+/**
+ * Measurements taken while processing a single preview frame, for tuning thresholds from real
+ * data. Instances are reused from frame to frame by the inference thread.
+ */
+public class FrameMetrics {
+  /**
+   * Timestamp of the frame, in nanoseconds.
+   */
+  public long timestamp;
+
+  /**
+   * Focus measure of the frame; higher is sharper.
+   */
+  public float sharpness;
+
+  /**
+   * Whether the frame was sharp enough to be classified.
+   */
+  public boolean classified;
+
+  public int numTiles;
+  public int tilesEvaluated;
+  public int tilesReused;
+
+  /**
+   * The highest text confidence of any tile.
+   */
+  public float maxConfidence;
+
+  /**
+   * The number of separate text regions found.
+   */
+  public int textRegions;
+
+  public long inferenceMs;
+
+  public void reset(final TileFrame frame) {
+    timestamp = frame.timestamp;
+    sharpness = frame.sharpness;
+    classified = false;
+    numTiles = frame.getNumTiles();
+    tilesEvaluated = 0;
+    tilesReused = 0;
+    maxConfidence = 0.0f;
+    textRegions = 0;
+    inferenceMs = 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "sharpness %.1f, %s, %d/%d tiles evaluated, %d reused, max confidence %.3f, "
+            + "%d text regions, %dms",
+        sharpness, classified ? "classified" : "skipped", tilesEvaluated, numTiles, tilesReused,
+        maxConfidence, textRegions, inferenceMs);
+  }
+}
@@ -0,0 +1,167 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import android.media.Image.Plane;
+
+import com.martinbede.secondsight.env.ImageUtils;
+import com.martinbede.secondsight.env.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cuts preview frames into the square grayscale tiles fed to the text detector. Frames are
+ * bilinearly resampled onto a grid of whole tiles, so that no partial segments are left over.
+ *
+ * <p>Tiles are written into {@link TileFrame}s drawn from a small lock-free pool. Frames are only
+ * allocated while the pool warms up or after the preview resolution changes, so tiling does not
+ * allocate anything on the Java heap in steady state. {@link #configure}, {@link #obtainFrame}
+ * and the tiling methods must be called from the same thread; {@link #recycleFrame} may be called
+ * from any thread.
+ */
+public class FrameTiler {
+  private static final Logger LOGGER = new Logger();
+
+  // One frame being tiled, one waiting in the mailbox, one being classified and the sharpest
+  // recent one kept for uploads.
+  private static final int POOL_SIZE = 4;
+
+  // The focus measure looks at every FOCUS_STEP-th pixel in each direction.
+  private static final int FOCUS_STEP = 4;
+
+  // Tiles are summarized in thumbnails of 8x8 block averages for change detection.
+  private static final int THUMBNAIL_SIZE = 8;
+
+  private final int tileSize;
+  private final boolean keepArgb;
+  private final AtomicReferenceArray<TileFrame> pool =
+      new AtomicReferenceArray<TileFrame>(POOL_SIZE);
+
+  private int width = 0;
+  private int height = 0;
+  private int cols = 0;
+  private int rows = 0;
+
+  /**
+   * @param tileSize The width and height of a single tile.
+   * @param keepArgb Whether frames also keep their full colour pixels.
+   */
+  public FrameTiler(final int tileSize, final boolean keepArgb) {
+    this.tileSize = tileSize;
+    this.keepArgb = keepArgb;
+  }
+
+  /**
+   * Sizes the tile grid for frames of the given resolution. Pooled frames of any other
+   * resolution are dropped as they are obtained.
+   */
+  public void configure(final int width, final int height) {
+    if (this.width == width && this.height == height) {
+      return;
+    }
+
+    this.width = width;
+    this.height = height;
+    cols = (width + tileSize - 1) / tileSize;
+    rows = (height + tileSize - 1) / tileSize;
+
+    LOGGER.i("Tiling %dx%d frames into %dx%d tiles of %dx%d",
+        width, height, cols, rows, tileSize, tileSize);
+  }
+
+  /**
+   * Returns a frame of the configured resolution, reusing a pooled one where possible.
+   */
+  public TileFrame obtainFrame() {
+    for (int i = 0; i < POOL_SIZE; ++i) {
+      final TileFrame frame = pool.getAndSet(i, null);
+      if (frame != null && frame.width == width && frame.height == height) {
+        // The scores are those of the scene the frame showed last.
+        frame.classified = false;
+        Arrays.fill(frame.confidences, TileFrame.NOT_EVALUATED);
+        return frame;
+      }
+    }
+    return new TileFrame(width, height, cols, rows, tileSize, THUMBNAIL_SIZE, keepArgb);
+  }
+
+  /**
+   * Hands a frame back to the pool once its owner is done with it.
+   */
+  public void recycleFrame(final TileFrame frame) {
+    for (int i = 0; i < POOL_SIZE; ++i) {
+      if (pool.compareAndSet(i, null, frame)) {
+        return;
+      }
+    }
+    // The pool is full, so let this one be garbage collected.
+  }
+
+  /**
+   * Tiles a frame straight from its Y plane.
+   */
+  public void tileLuma(final Plane yPlane, final TileFrame frame) {
+    ImageUtils.extractLumaTiles(
+        yPlane.getBuffer(),
+        frame.tiles,
+        frame.width,
+        frame.height,
+        yPlane.getRowStride(),
+        yPlane.getPixelStride(),
+        frame.cols,
+        frame.rows,
+        frame.tileSize);
+    downsample(frame);
+  }
+
+  /**
+   * Tiles a frame whose {@link TileFrame#argb} pixels have already been filled in.
+   */
+  public void tileARGB8888(final TileFrame frame) {
+    ImageUtils.extractARGB8888Tiles(
+        frame.argb, frame.tiles, frame.width, frame.height, frame.cols, frame.rows, frame.tileSize);
+    downsample(frame);
+  }
+
+  /**
+   * Scores how sharp a frame is from its Y plane.
+   */
+  public void measureSharpness(final Plane yPlane, final TileFrame frame) {
+    frame.sharpness =
+        ImageUtils.computeFocusMeasure(
+            yPlane.getBuffer(),
+            frame.width,
+            frame.height,
+            yPlane.getRowStride(),
+            yPlane.getPixelStride(),
+            FOCUS_STEP);
+  }
+
+  private static void downsample(final TileFrame frame) {
+    ImageUtils.downsampleTiles(
+        frame.tiles, frame.getNumTiles(), frame.tileSize, frame.thumbnails, frame.thumbnailSize);
+  }
+
+  /**
+   * Reassembles the tiles of a frame into a grayscale image of
+   * {@link TileFrame#getGridWidth()} x {@link TileFrame#getGridHeight()} pixels.
+   */
+  public static void toARGB8888(final TileFrame frame, final int[] output) {
+    ImageUtils.convertLumaTilesToARGB8888(
+        frame.tiles, output, frame.cols, frame.rows, frame.tileSize);
+  }
+}
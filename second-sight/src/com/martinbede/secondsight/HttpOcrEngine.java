@@ -0,0 +1,130 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads text with a plain HTTP OCR server, such as an OCR engine on the local network or the
+ * stand-in in tools/ocr_standin.py for tests and benchmarks. The base64 encoded JPEG is posted as
+ * the request body and the response body is the text.
+ *
+ * <p>For benchmarking, a fixed latency can be added to every request.
+ */
+public class HttpOcrEngine implements OcrEngine {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final String name;
+  private final URL url;
+  private final int timeoutMs;
+  private volatile long injectedLatencyMs = 0;
+
+  /**
+   * @param url The URL to post images to.
+   * @param timeoutMs How long to wait for the connection and for the response each.
+   */
+  public HttpOcrEngine(final String name, final URL url, final int timeoutMs) {
+    this.name = name;
+    this.url = url;
+    this.timeoutMs = timeoutMs;
+  }
+
+  /**
+   * Delays every request by the given time, to simulate a slower engine or network.
+   */
+  public void setInjectedLatencyMs(final long injectedLatencyMs) {
+    this.injectedLatencyMs = injectedLatencyMs;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public List<String> recognize(final List<UploadEncoder.EncodedImage> images)
+      throws IOException {
+    // The protocol takes one image per request; the connection is kept alive in between.
+    final List<String> texts = new ArrayList<String>(images.size());
+    for (final UploadEncoder.EncodedImage image : images) {
+      texts.add(recognize(image));
+    }
+    return texts;
+  }
+
+  private String recognize(final UploadEncoder.EncodedImage image) throws IOException {
+    final long latency = injectedLatencyMs;
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+    }
+
+    final byte[] body = image.content.getBytes(UTF_8);
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      connection.setConnectTimeout(timeoutMs);
+      connection.setReadTimeout(timeoutMs);
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+      connection.setFixedLengthStreamingMode(body.length);
+
+      final OutputStream out = connection.getOutputStream();
+      try {
+        out.write(body);
+      } finally {
+        out.close();
+      }
+
+      final int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException(name + " answered with HTTP " + status);
+      }
+
+      // Reading the whole response lets the connection be reused.
+      final InputStream in = connection.getInputStream();
+      try {
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          text.write(buffer, 0, read);
+        }
+        return new String(text.toByteArray(), UTF_8).trim();
+      } finally {
+        in.close();
+      }
+    } catch (final IOException e) {
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() {}
+}
@@ -0,0 +1,165 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import android.content.res.AssetManager;
+import android.os.SystemClock;
+
+import com.martinbede.secondsight.env.Logger;
+
+/**
+ * Measures full-grid classification throughput for combinations of Tensorflow session threading
+ * and inference workers, to find the fastest setup for a device. Each configuration recreates the
+ * session, so this is meant to be run once on a representative frame, not during normal use.
+ */
+public class InferenceBenchmark {
+  private static final Logger LOGGER = new Logger();
+
+  // 0 is one thread per core. The workers share the intra op pool, so the smaller pools are the
+  // setups that split the cores between concurrent runs.
+  private static final int[] INTRA_OP_THREADS = {0, 1, 2, 4, 8};
+  private static final int[] INTER_OP_THREADS = {1, 2};
+  private static final int[] WORKERS = {1, 2, 4};
+
+  // Untimed passes that let the session allocate its buffers.
+  private static final int WARMUP_PASSES = 1;
+
+  /**
+   * The fastest configuration that was measured.
+   */
+  public static class Result {
+    public final int intraOpThreads;
+    public final int interOpThreads;
+    public final int numWorkers;
+    public final float framesPerSecond;
+
+    public Result(
+        final int intraOpThreads,
+        final int interOpThreads,
+        final int numWorkers,
+        final float framesPerSecond) {
+      this.intraOpThreads = intraOpThreads;
+      this.interOpThreads = interOpThreads;
+      this.numWorkers = numWorkers;
+      this.framesPerSecond = framesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "intra %d, inter %d, %d workers: %.2f fps",
+          intraOpThreads, interOpThreads, numWorkers, framesPerSecond);
+    }
+  }
+
+  private final TensorflowClassifier classifier;
+  private final AssetManager assetManager;
+  private final String model;
+  private final String labels;
+  private final int numClasses;
+  private final int inputSize;
+  private final int imageMean;
+
+  public InferenceBenchmark(
+      final TensorflowClassifier classifier,
+      final AssetManager assetManager,
+      final String model,
+      final String labels,
+      final int numClasses,
+      final int inputSize,
+      final int imageMean) {
+    this.classifier = classifier;
+    this.assetManager = assetManager;
+    this.model = model;
+    this.labels = labels;
+    this.numClasses = numClasses;
+    this.inputSize = inputSize;
+    this.imageMean = imageMean;
+  }
+
+  /**
+   * Classifies every tile of the frame the given number of times per configuration, logging the
+   * throughput of each. The session is left initialized with the fastest configuration.
+   *
+   * @return The fastest configuration, or null if none of them ran.
+   */
+  public Result run(final TileFrame frame, final int passes) {
+    final int numTiles = frame.getNumTiles();
+    final int[] tileIndices = new int[numTiles];
+    for (int i = 0; i < numTiles; ++i) {
+      tileIndices[i] = i;
+    }
+    final float[] confidences = new float[numTiles];
+
+    Result best = null;
+    for (final int intraOpThreads : INTRA_OP_THREADS) {
+      for (final int interOpThreads : INTER_OP_THREADS) {
+        initialize(intraOpThreads, interOpThreads);
+
+        for (final int numWorkers : WORKERS) {
+          final TileInferencePool pool = new TileInferencePool(classifier, numWorkers);
+          try {
+            final float fps = measure(pool, frame, tileIndices, confidences, passes);
+            LOGGER.i("Benchmark: intra %d, inter %d, %d workers: %.2f fps",
+                intraOpThreads, interOpThreads, numWorkers, fps);
+            if (fps > 0 && (best == null || fps > best.framesPerSecond)) {
+              best = new Result(intraOpThreads, interOpThreads, numWorkers, fps);
+            }
+          } finally {
+            pool.close();
+          }
+        }
+      }
+    }
+
+    if (best != null) {
+      LOGGER.i("Benchmark: fastest is %s", best);
+      initialize(best.intraOpThreads, best.interOpThreads);
+    } else {
+      initialize(0, 0);
+    }
+    return best;
+  }
+
+  private void initialize(final int intraOpThreads, final int interOpThreads) {
+    classifier.close();
+    classifier.initializeTensorflow(
+        assetManager, model, labels, numClasses, inputSize, imageMean,
+        intraOpThreads, interOpThreads);
+  }
+
+  private static float measure(
+      final TileInferencePool pool,
+      final TileFrame frame,
+      final int[] tileIndices,
+      final float[] confidences,
+      final int passes) {
+    for (int i = 0; i < WARMUP_PASSES; ++i) {
+      if (!pool.recognizeTiles(frame.tiles, tileIndices, tileIndices.length, confidences)) {
+        return 0.0f;
+      }
+    }
+
+    final long start = SystemClock.uptimeMillis();
+    for (int i = 0; i < passes; ++i) {
+      if (!pool.recognizeTiles(frame.tiles, tileIndices, tileIndices.length, confidences)) {
+        return 0.0f;
+      }
+    }
+    final long elapsedMs = Math.max(1, SystemClock.uptimeMillis() - start);
+    return passes * 1000.0f / elapsedMs;
+  }
+}
@@ -0,0 +1,227 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers recent OCR results by a perceptual hash of the image they were read from, so that
+ * pointing at the same label again is answered without a network round trip. The hash is a 64 bit
+ * difference hash (dHash) of the luminance, which stays put under small shifts, exposure changes
+ * and sensor noise. Images whose hashes differ in only a few bits count as the same.
+ *
+ * <p>Such a coarse hash cannot tell apart labels with the same layout but different words. It is
+ * therefore only trusted for the few seconds in which the camera jitters over the same label.
+ * After that, a result is only returned for an image with the same exact
+ * {@link Hasher#fingerprint}, as results in {@link OcrStore} are. Entries expire after a while and
+ * the least recently used ones are evicted when the cache is full.
+ *
+ * <p>Thread-safe, except for the {@link Hasher}s.
+ */
+public class OcrCache {
+  // The image is reduced to HASH_WIDTH x HASH_HEIGHT cells, and every bit of the hash tells
+  // whether a cell is brighter than its right neighbour.
+  private static final int HASH_WIDTH = 9;
+  private static final int HASH_HEIGHT = 8;
+
+  // The fingerprint is a difference hash over a much finer grid, folded down to 64 bits.
+  private static final int FINGERPRINT_WIDTH = 33;
+  private static final int FINGERPRINT_HEIGHT = 32;
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private static class Entry {
+    final String text;
+    final long fingerprint;
+    final long createdMs;
+
+    Entry(final String text, final long fingerprint, final long createdMs) {
+      this.text = text;
+      this.fingerprint = fingerprint;
+      this.createdMs = createdMs;
+    }
+  }
+
+  /**
+   * Computes the hashes of image crops in a reused buffer. Not thread-safe; meant to be owned by
+   * the inference thread.
+   */
+  public static class Hasher {
+    private final int[] cells = new int[FINGERPRINT_WIDTH * FINGERPRINT_HEIGHT];
+
+    /**
+     * Computes the perceptual hash of an ARGB_8888 image crop from its green channel, which
+     * carries most of the luminance.
+     *
+     * @param pixels The image pixels.
+     * @param offset The index of the top left pixel of the crop.
+     * @param stride The row stride of the image, in pixels.
+     */
+    public long hash(
+        final int[] pixels, final int offset, final int stride, final int width, final int height) {
+      averageCells(pixels, offset, stride, width, height, HASH_WIDTH, HASH_HEIGHT, cells);
+      long hash = 0;
+      for (int cy = 0; cy < HASH_HEIGHT; ++cy) {
+        for (int cx = 0; cx < HASH_WIDTH - 1; ++cx) {
+          final int cell = cy * HASH_WIDTH + cx;
+          hash = (hash << 1) | (cells[cell] > cells[cell + 1] ? 1 : 0);
+        }
+      }
+      return hash;
+    }
+
+    /**
+     * Computes a fingerprint of an ARGB_8888 image crop for exact matching: the FNV-1a hash of a
+     * 32 x 32 difference hash of its green channel. Unlike {@link #hash}, it tells apart texts of
+     * the same layout, while still ignoring noise below the resolution of its grid.
+     *
+     * @param pixels The image pixels.
+     * @param offset The index of the top left pixel of the crop.
+     * @param stride The row stride of the image, in pixels.
+     */
+    public long fingerprint(
+        final int[] pixels, final int offset, final int stride, final int width, final int height) {
+      averageCells(
+          pixels, offset, stride, width, height, FINGERPRINT_WIDTH, FINGERPRINT_HEIGHT, cells);
+      long fingerprint = FNV_OFFSET_BASIS;
+      int bits = 0;
+      int numBits = 0;
+      for (int cy = 0; cy < FINGERPRINT_HEIGHT; ++cy) {
+        for (int cx = 0; cx < FINGERPRINT_WIDTH - 1; ++cx) {
+          final int cell = cy * FINGERPRINT_WIDTH + cx;
+          bits = (bits << 1) | (cells[cell] > cells[cell + 1] ? 1 : 0);
+          if (++numBits == 8) {
+            fingerprint = (fingerprint ^ bits) * FNV_PRIME;
+            bits = 0;
+            numBits = 0;
+          }
+        }
+      }
+      return fingerprint;
+    }
+  }
+
+  private final int maxDistance;
+  private final long jitterMs;
+  private final long ttlMs;
+
+  // In access order, so that the eldest entry is the least recently used one.
+  private final LinkedHashMap<Long, Entry> entries;
+
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * @param capacity The largest number of results kept.
+   * @param maxDistance The largest number of differing hash bits for images to match.
+   * @param jitterMs How long a result is returned for images that only match by hash.
+   * @param ttlMs How long a result is kept for images with the same fingerprint.
+   */
+  public OcrCache(
+      final int capacity, final int maxDistance, final long jitterMs, final long ttlMs) {
+    this.maxDistance = maxDistance;
+    this.jitterMs = jitterMs;
+    this.ttlMs = ttlMs;
+    entries =
+        new LinkedHashMap<Long, Entry>(capacity + 1, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(final Map.Entry<Long, Entry> eldest) {
+            return size() > capacity;
+          }
+        };
+  }
+
+  // Averages the green channel of the crop down to a grid of cells.
+  private static void averageCells(
+      final int[] pixels,
+      final int offset,
+      final int stride,
+      final int width,
+      final int height,
+      final int gridWidth,
+      final int gridHeight,
+      final int[] cells) {
+    for (int cy = 0; cy < gridHeight; ++cy) {
+      final int y0 = cy * height / gridHeight;
+      final int y1 = Math.max(y0 + 1, (cy + 1) * height / gridHeight);
+      for (int cx = 0; cx < gridWidth; ++cx) {
+        final int x0 = cx * width / gridWidth;
+        final int x1 = Math.max(x0 + 1, (cx + 1) * width / gridWidth);
+        int sum = 0;
+        for (int y = y0; y < y1; ++y) {
+          final int row = offset + y * stride;
+          for (int x = x0; x < x1; ++x) {
+            sum += (pixels[row + x] >> 8) & 0xff;
+          }
+        }
+        cells[cy * gridWidth + cx] = sum / ((y1 - y0) * (x1 - x0));
+      }
+    }
+  }
+
+  /**
+   * Returns the text read from an image with the same fingerprint, or else from the closest
+   * matching image read within the jitter time, or null if there is none.
+   */
+  public synchronized String lookup(final long hash, final long fingerprint, final long nowMs) {
+    Long bestKey = null;
+    int bestDistance = maxDistance + 1;
+    final Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<Long, Entry> entry = it.next();
+      final long ageMs = nowMs - entry.getValue().createdMs;
+      if (ageMs > ttlMs) {
+        it.remove();
+        continue;
+      }
+      if (entry.getValue().fingerprint == fingerprint) {
+        bestKey = entry.getKey();
+        break;
+      }
+      final int distance = Long.bitCount(entry.getKey() ^ hash);
+      if (ageMs <= jitterMs && distance < bestDistance) {
+        bestKey = entry.getKey();
+        bestDistance = distance;
+      }
+    }
+
+    if (bestKey == null) {
+      ++misses;
+      return null;
+    }
+    ++hits;
+    // Getting it marks it as used.
+    return entries.get(bestKey).text;
+  }
+
+  /**
+   * Stores the text read from an image with the given hash and fingerprint.
+   */
+  public synchronized void put(
+      final long hash, final long fingerprint, final String text, final long nowMs) {
+    entries.put(hash, new Entry(text, fingerprint, nowMs));
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+}
@@ -0,0 +1,42 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Generic interface for services that read the text in an image. Where a {@link Classifier}
+ * decides whether there is text, an OcrEngine reads it.
+ */
+public interface OcrEngine {
+  /**
+   * A short name for logs.
+   */
+  String getName();
+
+  /**
+   * Reads the text in the images, with as few round trips as the engine allows. Blocks until all
+   * of it is read, so it must not be called on the UI thread.
+   *
+   * @return The text of every image in the same order, an empty string where there is none, or
+   *     null where that image could not be read although others could.
+   * @throws IOException if no text could be read.
+   */
+  List<String> recognize(List<UploadEncoder.EncodedImage> images) throws IOException;
+
+  void close();
+}
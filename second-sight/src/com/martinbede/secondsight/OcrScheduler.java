@@ -0,0 +1,331 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import android.os.SystemClock;
+
+import com.martinbede.secondsight.env.Logger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs OCR requests on an {@link OcrEngine} with at most a fixed number in flight. A request is a
+ * batch of images that the engine reads together. Requests wait
+ * in a bounded queue, and when it is full the oldest waiting request gives way. Every request has
+ * a deadline: one that is not done by then is cancelled, and a result that arrives later is
+ * dropped, so that nothing is read aloud long after the camera moved on. Requests made obsolete
+ * by a newer frame can be cancelled all at once.
+ *
+ * <p>Interrupting a thread does not stop a blocking network read, so a cancelled request keeps
+ * its slot until the engine returns, which its timeouts bound. That way no more than the given
+ * number of requests ever use the network, and a fixed pool of that many threads serves them.
+ *
+ * <p>Callbacks run on the worker threads. Thread-safe.
+ */
+public class OcrScheduler {
+  private static final Logger LOGGER = new Logger();
+
+  // How much the average latency and queue wait move towards each new measurement.
+  private static final float LATENCY_WEIGHT = 0.2f;
+
+  /**
+   * Receives the outcome of requests. Requests that are cancelled or miss their deadline are
+   * reported to neither method.
+   */
+  public interface Callback {
+    /**
+     * @param texts The text of every image, in the order of the images.
+     * @param latencyMs How long the engine took, from the start of the request to its result.
+     *     Time spent waiting in the queue is not included.
+     */
+    void onTextRead(List<UploadEncoder.EncodedImage> images, List<String> texts, long latencyMs);
+
+    void onFailed(List<UploadEncoder.EncodedImage> images, IOException e);
+  }
+
+  private class Request implements Runnable {
+    final List<UploadEncoder.EncodedImage> images;
+    final Callback callback;
+    final long submittedMs;
+    final long deadlineMs;
+    // Set when the request starts, and when the engine returns.
+    long startedMs;
+    long finishedMs;
+
+    // Guarded by the scheduler.
+    Thread thread;
+    boolean cancelled;
+
+    Request(final List<UploadEncoder.EncodedImage> images, final Callback callback) {
+      this.images = images;
+      this.callback = callback;
+      submittedMs = SystemClock.uptimeMillis();
+      deadlineMs = submittedMs + timeoutMs;
+    }
+
+    @Override
+    public void run() {
+      if (!begin(this)) {
+        return;
+      }
+
+      List<String> texts = null;
+      IOException failure = null;
+      try {
+        texts = engine.recognize(images);
+      } catch (final IOException e) {
+        failure = e;
+      }
+      finishedMs = SystemClock.uptimeMillis();
+
+      if (!end(this, failure == null)) {
+        return;
+      }
+      if (failure == null) {
+        callback.onTextRead(images, texts, finishedMs - startedMs);
+      } else {
+        callback.onFailed(images, failure);
+      }
+    }
+  }
+
+  private final OcrEngine engine;
+  private final int maxInFlight;
+  private final int maxQueued;
+  private final long timeoutMs;
+
+  private final ExecutorService workers;
+  private final ScheduledExecutorService watchdog;
+
+  // Guarded by this.
+  private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+  // Requests whose outcome is still wanted.
+  private final List<Request> inFlight = new ArrayList<Request>();
+  // Requests handed to a worker that did not return yet, including cancelled ones.
+  private int running = 0;
+  private long completed = 0;
+  private long failed = 0;
+  private long cancelled = 0;
+  private long late = 0;
+  private float averageLatencyMs = 0.0f;
+  private float averageQueueWaitMs = 0.0f;
+
+  /**
+   * @param engine The engine to read text with.
+   * @param maxInFlight The largest number of requests run at once.
+   * @param maxQueued The largest number of requests waiting to run.
+   * @param timeoutMs How long a request may take from submission to result.
+   */
+  public OcrScheduler(
+      final OcrEngine engine, final int maxInFlight, final int maxQueued, final long timeoutMs) {
+    this.engine = engine;
+    this.maxInFlight = maxInFlight;
+    this.maxQueued = maxQueued;
+    this.timeoutMs = timeoutMs;
+
+    workers =
+        Executors.newFixedThreadPool(Math.max(1, maxInFlight), new NamedThreadFactory("OcrWorker"));
+    watchdog = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("OcrWatchdog"));
+  }
+
+  /**
+   * Cancels all requests submitted so far.
+   */
+  public synchronized void cancelAll() {
+    while (!queue.isEmpty()) {
+      queue.poll().cancelled = true;
+      ++cancelled;
+    }
+    for (final Request request : new ArrayList<Request>(inFlight)) {
+      cancel(request);
+      ++cancelled;
+    }
+  }
+
+  /**
+   * Queues a request to read the given images together.
+   */
+  public synchronized void submit(
+      final List<UploadEncoder.EncodedImage> images, final Callback callback) {
+    if (queue.size() >= maxQueued) {
+      queue.poll().cancelled = true;
+      ++cancelled;
+    }
+    queue.add(new Request(images, callback));
+    dispatch();
+  }
+
+  public synchronized int getQueueDepth() {
+    return queue.size();
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight.size();
+  }
+
+  /**
+   * Returns how many requests hold a slot, including cancelled ones the engine has not given up
+   * on yet.
+   */
+  public synchronized int getRunning() {
+    return running;
+  }
+
+  public synchronized float getAverageLatencyMs() {
+    return averageLatencyMs;
+  }
+
+  public synchronized float getAverageQueueWaitMs() {
+    return averageQueueWaitMs;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "%d queued, %d in flight, %d running, %d completed, %d failed, %d cancelled, "
+            + "%d late, %.0fms average latency, %.0fms average queue wait",
+        queue.size(), inFlight.size(), running, completed, failed, cancelled, late,
+        averageLatencyMs, averageQueueWaitMs);
+  }
+
+  /**
+   * Cancels everything and stops the worker threads.
+   */
+  public void close() {
+    cancelAll();
+    workers.shutdownNow();
+    watchdog.shutdownNow();
+  }
+
+  // Starts queued requests while there are free slots.
+  private void dispatch() {
+    while (running < maxInFlight && !queue.isEmpty()) {
+      final Request request = queue.poll();
+      if (SystemClock.uptimeMillis() >= request.deadlineMs) {
+        ++late;
+        continue;
+      }
+      inFlight.add(request);
+      ++running;
+      try {
+        workers.execute(request);
+        watchdog.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                timeOut(request);
+              }
+            },
+            request.deadlineMs - SystemClock.uptimeMillis(),
+            TimeUnit.MILLISECONDS);
+      } catch (final RejectedExecutionException e) {
+        inFlight.remove(request);
+        --running;
+        request.cancelled = true;
+        return;
+      }
+    }
+  }
+
+  private synchronized boolean begin(final Request request) {
+    if (request.cancelled) {
+      release();
+      return false;
+    }
+    request.thread = Thread.currentThread();
+    request.startedMs = SystemClock.uptimeMillis();
+    averageQueueWaitMs = average(averageQueueWaitMs, request.startedMs - request.submittedMs);
+    return true;
+  }
+
+  // Frees the slot of a finished request. Returns whether its outcome should be reported.
+  private synchronized boolean end(final Request request, final boolean succeeded) {
+    request.thread = null;
+    // Clears an interrupt meant for a request that was already done.
+    Thread.interrupted();
+    release();
+
+    if (request.cancelled) {
+      return false;
+    }
+    inFlight.remove(request);
+
+    final long now = SystemClock.uptimeMillis();
+    if (now > request.deadlineMs) {
+      ++late;
+      return false;
+    }
+    if (succeeded) {
+      ++completed;
+      averageLatencyMs = average(averageLatencyMs, request.finishedMs - request.startedMs);
+    } else {
+      ++failed;
+    }
+    return true;
+  }
+
+  // Frees the slot of a request whose worker is done with it.
+  private void release() {
+    --running;
+    dispatch();
+  }
+
+  private static float average(final float average, final long measured) {
+    return average == 0 ? measured : average + LATENCY_WEIGHT * (measured - average);
+  }
+
+  private synchronized void timeOut(final Request request) {
+    if (inFlight.contains(request)) {
+      LOGGER.d("OCR request missed its deadline of %dms", timeoutMs);
+      ++late;
+      cancel(request);
+    }
+  }
+
+  // The slot stays taken until the worker returns.
+  private void cancel(final Request request) {
+    request.cancelled = true;
+    if (request.thread != null) {
+      request.thread.interrupt();
+    }
+    inFlight.remove(request);
+  }
+
+  private static class NamedThreadFactory implements ThreadFactory {
+    private final String name;
+    private int count = 0;
+
+    NamedThreadFactory(final String name) {
+      this.name = name;
+    }
+
+    @Override
+    public synchronized Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, name + "-" + ++count);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
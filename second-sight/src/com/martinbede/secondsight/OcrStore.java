@@ -0,0 +1,388 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import com.martinbede.secondsight.env.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent store of OCR results, keyed by the {@link OcrCache.Hasher#fingerprint} of the
+ * image the text was read from, so that results survive restarts. Fingerprints have to match
+ * exactly: a result that is kept for weeks must not be answered for a label that merely looks
+ * alike.
+ * Results are appended to a single file that is memory-mapped when the store is opened. Once the
+ * file holds more than the maximum number of results, it is compacted down to the newest ones.
+ *
+ * <p>All file access happens on a background thread. Lookups only read an immutable index that
+ * the background thread replaces after every change, so they never wait for the disk. Until the
+ * file has been loaded, lookups find nothing.
+ *
+ * <p>Thread-safe.
+ */
+public class OcrStore {
+  private static final Logger LOGGER = new Logger();
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // "OCR2" at the start of the file. Files of the first format were keyed by the coarse
+  // perceptual hash and are discarded.
+  private static final int MAGIC = 0x4f435232;
+  private static final int FILE_HEADER_BYTES = 4;
+
+  // Every record is the fingerprint, the creation time in ms since the epoch, the length of the
+  // text in bytes and the UTF-8 text itself.
+  private static final int RECORD_HEADER_BYTES = 8 + 8 + 4;
+  private static final int MAX_TEXT_BYTES = 16 * 1024;
+
+  // Compaction keeps this fraction of the maximum number of results, so that it does not have to
+  // run again right away.
+  private static final float COMPACTED_FRACTION = 0.75f;
+
+  /**
+   * The results known at some point. Results read from the file are decoded from the mapped
+   * buffer when they are hit, results added since are kept as strings.
+   */
+  private static class Index {
+    static final Index EMPTY = new Index(null, 0);
+
+    final MappedByteBuffer mapped;
+    final int size;
+    final long[] fingerprints;
+    final long[] createdMs;
+    final int[] offsets;
+    final int[] lengths;
+    final String[] texts;
+
+    Index(final MappedByteBuffer mapped, final int size) {
+      this.mapped = mapped;
+      this.size = size;
+      fingerprints = new long[size];
+      createdMs = new long[size];
+      offsets = new int[size];
+      lengths = new int[size];
+      texts = new String[size];
+    }
+
+    // Returns a copy of this index with one more result.
+    Index with(final long fingerprint, final long created, final String text) {
+      final Index index = new Index(mapped, size + 1);
+      System.arraycopy(fingerprints, 0, index.fingerprints, 0, size);
+      System.arraycopy(createdMs, 0, index.createdMs, 0, size);
+      System.arraycopy(offsets, 0, index.offsets, 0, size);
+      System.arraycopy(lengths, 0, index.lengths, 0, size);
+      System.arraycopy(texts, 0, index.texts, 0, size);
+      index.fingerprints[size] = fingerprint;
+      index.createdMs[size] = created;
+      index.texts[size] = text;
+      return index;
+    }
+
+    String getText(final int i) {
+      if (texts[i] != null) {
+        return texts[i];
+      }
+      final ByteBuffer buffer = mapped.duplicate();
+      buffer.position(offsets[i]);
+      final byte[] bytes = new byte[lengths[i]];
+      buffer.get(bytes);
+      return new String(bytes, UTF_8);
+    }
+  }
+
+  private final File file;
+  private final int maxEntries;
+  private final long maxAgeMs;
+  private final ExecutorService executor;
+
+  private volatile Index index = Index.EMPTY;
+
+  // Owned by the executor thread.
+  private FileChannel channel;
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+
+  /**
+   * @param file The file holding the results.
+   * @param maxEntries The number of results that triggers compaction.
+   * @param maxAgeMs How long a result is kept.
+   */
+  public OcrStore(
+      final File file, final int maxEntries, final long maxAgeMs) {
+    this.file = file;
+    this.maxEntries = maxEntries;
+    this.maxAgeMs = maxAgeMs;
+    executor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "OcrStore");
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+  }
+
+  /**
+   * Loads the file in the background.
+   */
+  public void open() {
+    submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              load();
+              if (index.size > maxEntries) {
+                compact();
+              }
+            } catch (final IOException e) {
+              LOGGER.e(e, "Could not open OCR store %s", file);
+              closeChannel();
+            }
+          }
+        });
+  }
+
+  /**
+   * Returns the latest text read from an image with this fingerprint, or null if there is none.
+   * Never blocks.
+   */
+  public String lookup(final long fingerprint) {
+    final Index index = this.index;
+    final long now = System.currentTimeMillis();
+
+    // Newest first, so that the latest reading wins.
+    int best = -1;
+    for (int i = index.size - 1; i >= 0; --i) {
+      if (index.fingerprints[i] == fingerprint && now - index.createdMs[i] <= maxAgeMs) {
+        best = i;
+        break;
+      }
+    }
+
+    if (best < 0) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return index.getText(best);
+  }
+
+  /**
+   * Stores the text read from an image with the given fingerprint in the background.
+   */
+  public void put(final long fingerprint, final String text) {
+    final long created = System.currentTimeMillis();
+    submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (channel == null) {
+              return;
+            }
+            try {
+              append(fingerprint, created, text);
+              if (index.size > maxEntries) {
+                compact();
+              }
+            } catch (final IOException e) {
+              LOGGER.e(e, "Could not write to OCR store %s", file);
+            }
+          }
+        });
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Finishes pending writes in the background and closes the file.
+   */
+  public void close() {
+    submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            closeChannel();
+          }
+        });
+    executor.shutdown();
+  }
+
+  private void submit(final Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (final RejectedExecutionException e) {
+      // Closed already.
+    }
+  }
+
+  // Opens and maps the file and reads its index, creating the file if needed. A partly written
+  // record at the end, left by a crash, is cut off.
+  private void load() throws IOException {
+    closeChannel();
+    channel = new RandomAccessFile(file, "rw").getChannel();
+
+    final long size = channel.size();
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("OCR store too large: " + size);
+    }
+    MappedByteBuffer mapped = null;
+    if (size >= FILE_HEADER_BYTES) {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (mapped.getInt(0) != MAGIC) {
+        LOGGER.w("Discarding OCR store %s with unknown format", file);
+        mapped = null;
+      }
+    }
+    if (mapped == null) {
+      channel.truncate(0);
+      final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+      header.putInt(MAGIC).flip();
+      channel.write(header, 0);
+      index = Index.EMPTY;
+      return;
+    }
+
+    // Find the complete records, then index them.
+    int numRecords = 0;
+    int position = FILE_HEADER_BYTES;
+    while (position + RECORD_HEADER_BYTES <= size) {
+      final int length = mapped.getInt(position + 16);
+      final int textOffset = position + RECORD_HEADER_BYTES;
+      if (length < 0 || length > MAX_TEXT_BYTES || textOffset + length > size) {
+        break;
+      }
+      ++numRecords;
+      position = textOffset + length;
+    }
+    if (position < size) {
+      LOGGER.w("Cutting %d bytes of incomplete records off OCR store", size - position);
+      channel.truncate(position);
+    }
+
+    final Index loaded = new Index(mapped, numRecords);
+    position = FILE_HEADER_BYTES;
+    for (int i = 0; i < numRecords; ++i) {
+      loaded.fingerprints[i] = mapped.getLong(position);
+      loaded.createdMs[i] = mapped.getLong(position + 8);
+      loaded.lengths[i] = mapped.getInt(position + 16);
+      loaded.offsets[i] = position + RECORD_HEADER_BYTES;
+      position = loaded.offsets[i] + loaded.lengths[i];
+    }
+    index = loaded;
+    LOGGER.i("Loaded %d OCR results from %s", loaded.size, file);
+  }
+
+  private void append(final long fingerprint, final long created, final String text)
+      throws IOException {
+    final byte[] bytes = text.getBytes(UTF_8);
+    if (bytes.length > MAX_TEXT_BYTES) {
+      return;
+    }
+    final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + bytes.length);
+    record.putLong(fingerprint).putLong(created).putInt(bytes.length).put(bytes).flip();
+    channel.write(record, channel.size());
+    index = index.with(fingerprint, created, text);
+  }
+
+  // Rewrites the file with the newest results that have not expired, one per fingerprint, and
+  // maps it again.
+  private void compact() throws IOException {
+    final Index old = index;
+    final int keep = (int) (maxEntries * COMPACTED_FRACTION);
+    final long now = System.currentTimeMillis();
+
+    // Pick the results to keep, newest first.
+    final int[] kept = new int[keep];
+    int numKept = 0;
+    for (int i = old.size - 1; i >= 0 && numKept < keep; --i) {
+      if (now - old.createdMs[i] > maxAgeMs || isNewerDuplicate(old, i, kept, numKept)) {
+        continue;
+      }
+      kept[numKept++] = i;
+    }
+
+    // Write them oldest first, so that the file stays in append order.
+    final File compacted = new File(file.getPath() + ".tmp");
+    final FileChannel out = new RandomAccessFile(compacted, "rw").getChannel();
+    try {
+      out.truncate(0);
+      final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+      header.putInt(MAGIC).flip();
+      out.write(header);
+      for (int k = numKept - 1; k >= 0; --k) {
+        final int i = kept[k];
+        final byte[] bytes = old.getText(i).getBytes(UTF_8);
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + bytes.length);
+        record.putLong(old.fingerprints[i]).putLong(old.createdMs[i]).putInt(bytes.length);
+        record.put(bytes).flip();
+        out.write(record);
+      }
+      out.force(true);
+    } finally {
+      out.close();
+    }
+
+    closeChannel();
+    if (!compacted.renameTo(file)) {
+      throw new IOException("Could not replace " + file);
+    }
+    load();
+    LOGGER.i("Compacted OCR store from %d to %d results", old.size, numKept);
+  }
+
+  private static boolean isNewerDuplicate(
+      final Index index, final int i, final int[] kept, final int numKept) {
+    for (int k = 0; k < numKept; ++k) {
+      if (index.fingerprints[kept[k]] == index.fingerprints[i]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void closeChannel() {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (final IOException e) {
+      LOGGER.w("Could not close OCR store: %s", e.getMessage());
+    }
+    channel = null;
+  }
+}
@@ -0,0 +1,262 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import android.os.SystemClock;
+
+import com.martinbede.secondsight.env.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Picks among several engines by how fast and how reliable they have been. Every request is sent
+ * to the fastest available engines at once and answered by whichever reads the text first, and
+ * the others are cancelled. Engines that have not answered yet count as fastest, so that every
+ * engine gets measured. After a failure, an engine counts as taking at least the whole failure
+ * latency, so that one that never answers is not picked first forever. That penalty lasts until
+ * the engine answers again or a while has passed, after which its measured latency counts again.
+ * An engine that keeps failing is left out for a while.
+ *
+ * <p>Racing only makes sense with at least two engines; CameraActivity uses a single engine
+ * directly.
+ *
+ * <p>Thread-safe.
+ */
+public class RacingOcrEngine implements OcrEngine {
+  private static final Logger LOGGER = new Logger();
+
+  // How much the latency estimate moves towards each new measurement.
+  private static final float LATENCY_WEIGHT = 0.3f;
+
+  // An engine is left out for BACKOFF_MS after this many failures in a row.
+  private static final int MAX_FAILURES = 3;
+  private static final long BACKOFF_MS = 60000;
+
+  private static class Contender {
+    final OcrEngine engine;
+
+    // Milliseconds, or 0 until the engine first answered.
+    float latencyMs = 0.0f;
+    // The latency counted instead, if higher, until penaltyUntilMs, after a failure.
+    float penaltyMs = 0.0f;
+    long penaltyUntilMs = 0;
+    int failures = 0;
+    long unavailableUntilMs = 0;
+
+    Contender(final OcrEngine engine) {
+      this.engine = engine;
+    }
+
+    boolean isAvailable(final long nowMs) {
+      return nowMs >= unavailableUntilMs;
+    }
+
+    float getRankingLatencyMs(final long nowMs) {
+      return nowMs < penaltyUntilMs ? Math.max(latencyMs, penaltyMs) : latencyMs;
+    }
+  }
+
+  private final Contender[] contenders;
+  private final int raceWidth;
+  private final long failureLatencyMs;
+  private final long failurePenaltyMs;
+  private final ExecutorService executor;
+
+  /**
+   * @param engines The engines to pick from.
+   * @param raceWidth How many engines to send every request to.
+   * @param failureLatencyMs The latency to count for a failed request, such as the deadline the
+   *     text has to be read by.
+   * @param failurePenaltyMs How long that latency is counted after a failure, unless the engine
+   *     answers again.
+   */
+  public RacingOcrEngine(
+      final List<OcrEngine> engines,
+      final int raceWidth,
+      final long failureLatencyMs,
+      final long failurePenaltyMs) {
+    contenders = new Contender[engines.size()];
+    for (int i = 0; i < contenders.length; ++i) {
+      contenders[i] = new Contender(engines.get(i));
+    }
+    this.raceWidth = Math.max(1, raceWidth);
+    this.failureLatencyMs = failureLatencyMs;
+    this.failurePenaltyMs = failurePenaltyMs;
+    executor =
+        Executors.newCachedThreadPool(
+            new ThreadFactory() {
+              private int count = 0;
+
+              @Override
+              public synchronized Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "OcrEngine-" + ++count);
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+  }
+
+  @Override
+  public String getName() {
+    return "race";
+  }
+
+  @Override
+  public List<String> recognize(final List<UploadEncoder.EncodedImage> images)
+      throws IOException {
+    final List<Contender> entrants = pickEntrants();
+    if (entrants.isEmpty()) {
+      throw new IOException("No OCR engine");
+    }
+    if (entrants.size() == 1) {
+      return run(entrants.get(0), images, SystemClock.uptimeMillis());
+    }
+
+    final long start = SystemClock.uptimeMillis();
+    final CompletionService<List<String>> race =
+        new ExecutorCompletionService<List<String>>(executor);
+    final List<Future<List<String>>> futures =
+        new ArrayList<Future<List<String>>>(entrants.size());
+    for (final Contender entrant : entrants) {
+      futures.add(
+          race.submit(
+              new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws IOException {
+                  return run(entrant, images, start);
+                }
+              }));
+    }
+
+    IOException failure = null;
+    try {
+      for (int i = 0; i < futures.size(); ++i) {
+        try {
+          return race.take().get();
+        } catch (final ExecutionException e) {
+          failure =
+              e.getCause() instanceof IOException
+                  ? (IOException) e.getCause()
+                  : new IOException(e.getCause());
+        }
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted");
+    } finally {
+      final long elapsed = SystemClock.uptimeMillis() - start;
+      for (int i = 0; i < futures.size(); ++i) {
+        if (futures.get(i).cancel(true)) {
+          // Lost the race, so it takes at least as long as the winner.
+          recordLoss(entrants.get(i), elapsed);
+        }
+      }
+    }
+    throw failure;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    for (final Contender contender : contenders) {
+      contender.engine.close();
+    }
+  }
+
+  // Returns the fastest available engines, or all engines if none is available.
+  private synchronized List<Contender> pickEntrants() {
+    final long now = SystemClock.uptimeMillis();
+    final List<Contender> available = new ArrayList<Contender>(contenders.length);
+    for (final Contender contender : contenders) {
+      if (contender.isAvailable(now)) {
+        available.add(contender);
+      }
+    }
+    if (available.isEmpty()) {
+      for (final Contender contender : contenders) {
+        available.add(contender);
+      }
+    }
+
+    // Selection sort by latency; there are only a few engines.
+    final List<Contender> entrants = new ArrayList<Contender>(raceWidth);
+    while (entrants.size() < raceWidth && !available.isEmpty()) {
+      int fastest = 0;
+      for (int i = 1; i < available.size(); ++i) {
+        if (available.get(i).getRankingLatencyMs(now)
+            < available.get(fastest).getRankingLatencyMs(now)) {
+          fastest = i;
+        }
+      }
+      entrants.add(available.remove(fastest));
+    }
+    return entrants;
+  }
+
+  private List<String> run(
+      final Contender contender, final List<UploadEncoder.EncodedImage> images, final long start)
+      throws IOException {
+    try {
+      final List<String> texts = contender.engine.recognize(images);
+      recordSuccess(contender, SystemClock.uptimeMillis() - start);
+      return texts;
+    } catch (final IOException e) {
+      // Engines that lost the race are interrupted, which is no fault of theirs.
+      if (!Thread.currentThread().isInterrupted()) {
+        recordFailure(contender, SystemClock.uptimeMillis() - start);
+      }
+      throw e;
+    }
+  }
+
+  private synchronized void recordSuccess(final Contender contender, final long elapsedMs) {
+    contender.latencyMs =
+        contender.latencyMs == 0
+            ? elapsedMs
+            : contender.latencyMs + LATENCY_WEIGHT * (elapsedMs - contender.latencyMs);
+    contender.failures = 0;
+    contender.penaltyUntilMs = 0;
+    LOGGER.v("%s read text in %dms (%.0fms on average)",
+        contender.engine.getName(), elapsedMs, contender.latencyMs);
+  }
+
+  private synchronized void recordLoss(final Contender contender, final long elapsedMs) {
+    contender.latencyMs = Math.max(contender.latencyMs, elapsedMs);
+  }
+
+  private synchronized void recordFailure(final Contender contender, final long elapsedMs) {
+    // No answer is as bad as one that came too late. Kept apart from the measured latency, so
+    // that a passing outage is soon forgotten.
+    contender.penaltyMs = Math.max(elapsedMs, failureLatencyMs);
+    contender.penaltyUntilMs = SystemClock.uptimeMillis() + failurePenaltyMs;
+    if (++contender.failures >= MAX_FAILURES) {
+      contender.failures = 0;
+      contender.unavailableUntilMs = SystemClock.uptimeMillis() + BACKOFF_MS;
+      LOGGER.w("%s failed %d times in a row, leaving it out for %dms",
+          contender.engine.getName(), MAX_FAILURES, BACKOFF_MS);
+    }
+  }
+}
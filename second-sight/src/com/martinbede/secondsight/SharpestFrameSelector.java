@@ -0,0 +1,71 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+/**
+ * Holds on to the sharpest frame seen within a short window, so that an upload can use it instead
+ * of whatever frame happened to trigger the detection. Only classified frames are kept, as the
+ * upload crops are planned from their confidences. Not thread-safe; meant to be owned by the
+ * inference thread. Frames it hands back are no longer referenced and may be recycled.
+ */
+public class SharpestFrameSelector {
+  private final long windowMs;
+
+  private TileFrame best = null;
+  private long bestAtMs = 0;
+
+  /**
+   * @param windowMs How long a frame remains a candidate.
+   */
+  public SharpestFrameSelector(final long windowMs) {
+    this.windowMs = windowMs;
+  }
+
+  /**
+   * Returns the sharpest of the current frame and the kept one, if that is still recent.
+   */
+  public TileFrame select(final TileFrame current, final long nowMs) {
+    if (isRecent(nowMs)
+        && best.sharpness > current.sharpness
+        && best.width == current.width
+        && best.height == current.height) {
+      return best;
+    }
+    return current;
+  }
+
+  /**
+   * Offers a frame that has been processed as a candidate for later uploads. Frames that were not
+   * classified are handed straight back.
+   *
+   * @return the frame that is no longer needed, which is either the offered one or the one it
+   *     replaced, or null.
+   */
+  public TileFrame offer(final TileFrame frame, final long nowMs) {
+    if (!frame.classified
+        || (best != null && isRecent(nowMs) && best.sharpness > frame.sharpness)) {
+      return frame;
+    }
+    final TileFrame replaced = best;
+    best = frame;
+    bestAtMs = nowMs;
+    return replaced;
+  }
+
+  private boolean isRecent(final long nowMs) {
+    return best != null && nowMs - bestAtMs <= windowMs;
+  }
+}
@@ -0,0 +1,447 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.speech.tts.Voice;
+
+import com.martinbede.secondsight.env.Logger;
+
+import java.io.File;
+import java.text.BreakIterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Speaks through a {@link TextToSpeech} engine one chunk at a time. Read texts are split into
+ * sentences, so that the first one starts as soon as it is synthesized, and only a few chunks are
+ * handed to the engine ahead of time. The rest wait here, where they can still be dropped: when a
+ * different result arrives, whatever is left of the one before it is flushed, and the new one is
+ * read right away. Short cues, such as announcements, are never flushed by results.
+ *
+ * <p>Fixed prompts can be rendered to audio files up front, which the engine then plays instead of
+ * synthesizing them, so that they start without delay.
+ *
+ * <p>Must be registered as the utterance progress listener of the engine. Thread-safe.
+ */
+public class SpeechScheduler extends UtteranceProgressListener {
+  private static final Logger LOGGER = new Logger();
+
+  // How much the average time to the first word moves towards each new measurement.
+  private static final float LATENCY_WEIGHT = 0.2f;
+
+  private static class Utterance {
+    final String id;
+    final String text;
+    // The result this is part of, or null for a cue.
+    final Object source;
+    final boolean first;
+    // Run once this has been spoken to the end, or null.
+    final Runnable onSpoken;
+
+    Utterance(
+        final String id,
+        final String text,
+        final Object source,
+        final boolean first,
+        final Runnable onSpoken) {
+      this.id = id;
+      this.text = text;
+      this.source = source;
+      this.first = first;
+      this.onSpoken = onSpoken;
+    }
+  }
+
+  private static final String WARM_UP_ID = "warm-up";
+
+  // A prompt whose rendering fails this often is left to the synthesizer.
+  private static final int MAX_RENDER_ERRORS = 3;
+
+  private static class Prompt {
+    final String text;
+    final File file;
+    final File tmpFile;
+    // Guarded by the scheduler.
+    int errors = 0;
+
+    Prompt(final String text, final File file) {
+      this.text = text;
+      this.file = file;
+      tmpFile = new File(file.getPath() + ".tmp");
+    }
+  }
+
+  private final TextToSpeech tts;
+  private final int maxChunkLength;
+  private final int lookahead;
+
+  // Guarded by this.
+  private final ArrayDeque<Utterance> waiting = new ArrayDeque<Utterance>();
+  private final ArrayDeque<Utterance> inEngine = new ArrayDeque<Utterance>();
+  private Object currentSource = null;
+  private String currentText = null;
+  private long readStartMs = 0;
+  private boolean firstQueued = false;
+  private int nextId = 0;
+  private int flushed = 0;
+  // Prompts being rendered, by utterance id.
+  private final Map<String, Prompt> rendering = new HashMap<String, Prompt>();
+  private float averageFirstWordMs = 0.0f;
+
+  /**
+   * @param tts The engine to speak with. Its language is set up by the caller.
+   * @param maxChunkLength Sentences longer than this many characters are spoken in parts.
+   * @param lookahead How many chunks the engine is given ahead of time, so that it can synthesize
+   *     the next one while speaking.
+   */
+  public SpeechScheduler(final TextToSpeech tts, final int maxChunkLength, final int lookahead) {
+    this.tts = tts;
+    this.maxChunkLength = maxChunkLength;
+    this.lookahead = lookahead;
+  }
+
+  /**
+   * Speaks a short announcement after whatever is already queued.
+   */
+  public synchronized void cue(final String text) {
+    waiting.add(new Utterance(Integer.toString(nextId++), text, null, false, null));
+    pump();
+  }
+
+  /**
+   * Reads the texts of a result. Texts of the same source are read one after another. A new
+   * source flushes what is left of the previous one, unless it has the same text, in which case
+   * the reading carries on.
+   *
+   * @param source Identifies the result, compared by reference.
+   * @param onSpoken For every text, what to run once it has been spoken to the end, or null. It
+   *     is not run for texts that are flushed or fail, and runs on a thread of the engine.
+   */
+  public synchronized void read(
+      final Object source, final List<String> texts, final List<Runnable> onSpoken) {
+    final StringBuilder joined = new StringBuilder();
+    for (final String text : texts) {
+      joined.append(text).append('\n');
+    }
+    final String text = joined.toString();
+    if (source != currentSource) {
+      if (text.equals(currentText) && isReading()) {
+        LOGGER.v("Already reading this text, carrying on");
+        return;
+      }
+      flushReading();
+      currentSource = source;
+      currentText = text;
+      readStartMs = SystemClock.uptimeMillis();
+      firstQueued = false;
+    } else {
+      currentText += text;
+    }
+
+    for (int i = 0; i < texts.size(); ++i) {
+      final List<String> chunks = split(texts.get(i), maxChunkLength);
+      for (int c = 0; c < chunks.size(); ++c) {
+        final Runnable done = c == chunks.size() - 1 && onSpoken != null ? onSpoken.get(i) : null;
+        waiting.add(
+            new Utterance(Integer.toString(nextId++), chunks.get(c), source, !firstQueued, done));
+        firstQueued = true;
+      }
+    }
+    pump();
+  }
+
+  /**
+   * Has the engine play a moment of silence, which loads the voice and opens the audio output
+   * before there is anything to say. Call once the engine is initialized.
+   */
+  public synchronized void warmUp() {
+    tts.playSilentUtterance(1, TextToSpeech.QUEUE_ADD, WARM_UP_ID);
+  }
+
+  /**
+   * Renders fixed prompts to audio files, or reuses the files rendered by an earlier run, and has
+   * the engine play them whenever exactly these texts are spoken. Call once the engine is
+   * initialized, with its language set. The files are named after the engine and voice, so that
+   * a different voice gets its own.
+   *
+   * @param dir Where the audio files are kept.
+   * @param locale The language the prompts are spoken in, which names the files if the engine
+   *     does not tell its voice.
+   */
+  public synchronized void prerender(final File dir, final Locale locale, final String... prompts) {
+    final Voice voice = tts.getVoice();
+    final String speaker =
+        toFileName(tts.getDefaultEngine()) + "_"
+            + toFileName(voice != null ? voice.getName() : locale.toString());
+    for (final String text : prompts) {
+      final Prompt prompt =
+          new Prompt(
+              text,
+              new File(dir, String.format("prompt_%s_%08x.wav", speaker, text.hashCode())));
+      if (prompt.file.length() > 0) {
+        tts.addSpeech(text, prompt.file);
+        continue;
+      }
+      render(prompt);
+    }
+  }
+
+  /**
+   * Stops speaking and drops everything queued, cues included.
+   */
+  public synchronized void flush() {
+    waiting.clear();
+    inEngine.clear();
+    currentSource = null;
+    currentText = null;
+    tts.stop();
+    renderStoppedPrompts();
+  }
+
+  /**
+   * @return Whether anything is being spoken or waiting to be.
+   */
+  public synchronized boolean isSpeaking() {
+    return !waiting.isEmpty() || !inEngine.isEmpty();
+  }
+
+  @Override
+  public synchronized void onStart(final String utteranceId) {
+    for (final Utterance utterance : inEngine) {
+      if (utterance.id.equals(utteranceId)) {
+        if (utterance.first && utterance.source == currentSource) {
+          final long latencyMs = SystemClock.uptimeMillis() - readStartMs;
+          averageFirstWordMs += LATENCY_WEIGHT * (latencyMs - averageFirstWordMs);
+          LOGGER.i("First word after %dms (%s)", latencyMs, this);
+        }
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void onDone(final String utteranceId) {
+    final Prompt prompt = removeRendering(utteranceId);
+    if (prompt != null) {
+      if (prompt.tmpFile.renameTo(prompt.file)) {
+        tts.addSpeech(prompt.text, prompt.file);
+        LOGGER.i("Rendered prompt \"%s\" to %s", prompt.text, prompt.file);
+      } else {
+        LOGGER.w("Could not keep the rendering of prompt \"%s\"", prompt.text);
+      }
+      return;
+    }
+    final Runnable onSpoken = finished(utteranceId);
+    if (onSpoken != null) {
+      onSpoken.run();
+    }
+  }
+
+  @Override
+  public void onError(final String utteranceId) {
+    final Prompt prompt = removeRendering(utteranceId);
+    if (prompt != null) {
+      LOGGER.w("Failed to render prompt \"%s\"", prompt.text);
+      renderAgain(prompt, true);
+      return;
+    }
+    LOGGER.w("Failed to speak utterance %s", utteranceId);
+    finished(utteranceId);
+  }
+
+  @Override
+  public void onStop(final String utteranceId, final boolean interrupted) {
+    final Prompt prompt = removeRendering(utteranceId);
+    if (prompt != null) {
+      renderAgain(prompt, false);
+      return;
+    }
+    finished(utteranceId);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "%d waiting, %d in engine, %d flushed, first word after %.0fms on average",
+        waiting.size(), inEngine.size(), flushed, averageFirstWordMs);
+  }
+
+  /**
+   * Splits text into sentences of at most maxLength characters, with whitespace collapsed. Longer
+   * sentences are broken at a line break or else a space, if there is one.
+   */
+  static List<String> split(final String text, final int maxLength) {
+    final List<String> chunks = new ArrayList<String>();
+    final BreakIterator sentences = BreakIterator.getSentenceInstance(Locale.getDefault());
+    sentences.setText(text);
+    int start = sentences.first();
+    int end = sentences.next();
+    while (end != BreakIterator.DONE) {
+      String sentence = text.substring(start, end).trim();
+      while (sentence.length() > maxLength) {
+        int cut = sentence.lastIndexOf('\n', maxLength);
+        if (cut <= 0) {
+          cut = sentence.lastIndexOf(' ', maxLength);
+        }
+        if (cut <= 0) {
+          cut = maxLength;
+        }
+        addChunk(chunks, sentence.substring(0, cut));
+        sentence = sentence.substring(cut).trim();
+      }
+      addChunk(chunks, sentence);
+      start = end;
+      end = sentences.next();
+    }
+    return chunks;
+  }
+
+  private static void addChunk(final List<String> chunks, final String chunk) {
+    final String collapsed = chunk.replaceAll("\\s+", " ").trim();
+    if (!collapsed.isEmpty()) {
+      chunks.add(collapsed);
+    }
+  }
+
+  private synchronized Prompt removeRendering(final String utteranceId) {
+    return rendering.remove(utteranceId);
+  }
+
+  // Renders a prompt to a temporary file first, so that an interrupted run leaves no partial
+  // audio behind.
+  private synchronized void render(final Prompt prompt) {
+    final String id = "prompt-" + nextId++;
+    if (tts.synthesizeToFile(prompt.text, new Bundle(), prompt.tmpFile, id)
+        == TextToSpeech.ERROR) {
+      LOGGER.w("Could not render prompt \"%s\"", prompt.text);
+      return;
+    }
+    rendering.put(id, prompt);
+  }
+
+  // Drops the partial rendering of a prompt and starts over, unless it failed too often.
+  private synchronized void renderAgain(final Prompt prompt, final boolean failed) {
+    prompt.tmpFile.delete();
+    if (failed && ++prompt.errors >= MAX_RENDER_ERRORS) {
+      return;
+    }
+    render(prompt);
+  }
+
+  // Stopping the engine also drops the renderings it had queued, and not every engine reports
+  // that, so they are queued again under new ids. The callbacks of the stopped ones then find
+  // nothing.
+  private void renderStoppedPrompts() {
+    if (rendering.isEmpty()) {
+      return;
+    }
+    final List<Prompt> stopped = new ArrayList<Prompt>(rendering.values());
+    rendering.clear();
+    for (final Prompt prompt : stopped) {
+      prompt.tmpFile.delete();
+      render(prompt);
+    }
+  }
+
+  // Keeps names of engines and voices safe for file names.
+  private static String toFileName(final String name) {
+    return name != null ? name.replaceAll("[^A-Za-z0-9.-]", "-") : "default";
+  }
+
+  // Forgets a finished utterance and returns what to run if it was spoken, unless it was flushed
+  // before.
+  private synchronized Runnable finished(final String utteranceId) {
+    Runnable onSpoken = null;
+    final Iterator<Utterance> it = inEngine.iterator();
+    while (it.hasNext()) {
+      final Utterance utterance = it.next();
+      if (utterance.id.equals(utteranceId)) {
+        it.remove();
+        onSpoken = utterance.onSpoken;
+        break;
+      }
+    }
+    pump();
+    return onSpoken;
+  }
+
+  private boolean isReading() {
+    for (final Utterance utterance : inEngine) {
+      if (utterance.source != null) {
+        return true;
+      }
+    }
+    for (final Utterance utterance : waiting) {
+      if (utterance.source != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Drops the chunks of the current result. The engine can only be flushed as a whole, so cues it
+  // was given are handed to it again, under new ids so that the callbacks of the stopped ones
+  // don't match them.
+  private void flushReading() {
+    final Iterator<Utterance> waitingIt = waiting.iterator();
+    while (waitingIt.hasNext()) {
+      if (waitingIt.next().source != null) {
+        waitingIt.remove();
+        ++flushed;
+      }
+    }
+    if (!isReading()) {
+      return;
+    }
+    tts.stop();
+    renderStoppedPrompts();
+    final Iterator<Utterance> it = inEngine.descendingIterator();
+    while (it.hasNext()) {
+      final Utterance utterance = it.next();
+      if (utterance.source == null) {
+        waiting.addFirst(
+            new Utterance(Integer.toString(nextId++), utterance.text, null, false, null));
+      } else {
+        ++flushed;
+      }
+    }
+    inEngine.clear();
+    LOGGER.v("Flushed stale speech (%s)", this);
+  }
+
+  // Hands waiting chunks to the engine until it has enough to go on.
+  private void pump() {
+    while (inEngine.size() < lookahead && !waiting.isEmpty()) {
+      final Utterance utterance = waiting.poll();
+      final Bundle params = new Bundle();
+      if (tts.speak(utterance.text, TextToSpeech.QUEUE_ADD, params, utterance.id)
+          == TextToSpeech.ERROR) {
+        LOGGER.w("Could not queue utterance %s", utterance.id);
+        continue;
+      }
+      inEngine.add(utterance);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Remembers what was read aloud recently, so that a label that is read again word for word is
+ * not spoken twice. Texts are normalized to lower case letters and digits first. A text is a
+ * repeat if it agrees with a remembered one word for word, where a word of at least four letters
+ * may differ in one character, as two OCR passes over the same text often do. Short words and
+ * words with digits have to match exactly, since "no" and "so" or two prices are different texts.
+ * The memory holds only a few texts, so every one of them is compared.
+ *
+ * <p>The exact fingerprint of the image every text was read from is kept along with it, so that a
+ * crop of a label that was just read can be recognized before it is uploaded. A perceptual hash
+ * would not do, as it cannot tell apart labels with the same layout. Entries expire after a
+ * while, and the oldest ones are dropped when the memory is full.
+ *
+ * <p>Thread-safe.
+ */
+public class SpokenTextMemory {
+  private static final int MIN_FUZZY_WORD_LENGTH = 4;
+
+  private static class Entry {
+    final String text;
+    final String[] words;
+    final boolean hasRegion;
+    final long regionFingerprint;
+    final long spokenMs;
+
+    Entry(
+        final String text,
+        final String[] words,
+        final boolean hasRegion,
+        final long regionFingerprint,
+        final long spokenMs) {
+      this.text = text;
+      this.words = words;
+      this.hasRegion = hasRegion;
+      this.regionFingerprint = regionFingerprint;
+      this.spokenMs = spokenMs;
+    }
+  }
+
+  private final int capacity;
+  private final long ttlMs;
+
+  // Oldest first.
+  private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+
+  private long repeats = 0;
+
+  /**
+   * @param capacity The largest number of texts remembered.
+   * @param ttlMs How long a text is remembered after it was spoken.
+   */
+  public SpokenTextMemory(final int capacity, final long ttlMs) {
+    this.capacity = capacity;
+    this.ttlMs = ttlMs;
+  }
+
+  /**
+   * Returns the text recently spoken for an image with the given exact fingerprint, or null if
+   * there is none.
+   */
+  public synchronized String lookupRegion(final long regionFingerprint, final long nowMs) {
+    expire(nowMs);
+    for (final Entry entry : entries) {
+      if (entry.hasRegion && entry.regionFingerprint == regionFingerprint) {
+        return entry.text;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns whether a text like this one was spoken recently. Texts without letters or digits
+   * always count as repeats.
+   */
+  public synchronized boolean isRepeat(final String text, final long nowMs) {
+    expire(nowMs);
+    final String normalized = normalize(text);
+    if (normalized.isEmpty()) {
+      return true;
+    }
+    final String[] words = normalized.split(" ");
+    for (final Entry entry : entries) {
+      if (sameWords(words, entry.words)) {
+        ++repeats;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Records that a text was spoken.
+   *
+   * @param hasRegion Whether the text was read from an image, with the given exact fingerprint.
+   */
+  public synchronized void remember(
+      final String text, final boolean hasRegion, final long regionFingerprint, final long nowMs) {
+    final String normalized = normalize(text);
+    if (normalized.isEmpty()) {
+      return;
+    }
+    if (entries.size() >= capacity) {
+      entries.poll();
+    }
+    entries.add(new Entry(text, normalized.split(" "), hasRegion, regionFingerprint, nowMs));
+  }
+
+  public synchronized long getRepeats() {
+    return repeats;
+  }
+
+  /**
+   * Lower cases the letters and digits of the text and separates words by single spaces.
+   */
+  static String normalize(final String text) {
+    final StringBuilder normalized = new StringBuilder(text.length());
+    boolean space = false;
+    for (int i = 0; i < text.length(); ++i) {
+      final char c = text.charAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        if (space && normalized.length() > 0) {
+          normalized.append(' ');
+        }
+        normalized.append(Character.toLowerCase(c));
+        space = false;
+      } else {
+        space = true;
+      }
+    }
+    return normalized.toString();
+  }
+
+  /**
+   * Returns whether two normalized texts have the same words, allowing for a one character OCR
+   * error in long words without digits.
+   */
+  static boolean sameWords(final String[] a, final String[] b) {
+    if (a.length != b.length) {
+      return false;
+    }
+    for (int i = 0; i < a.length; ++i) {
+      if (a[i].equals(b[i])) {
+        continue;
+      }
+      if (!isFuzzyWord(a[i]) || !isFuzzyWord(b[i]) || !oneEditApart(a[i], b[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isFuzzyWord(final String word) {
+    if (word.length() < MIN_FUZZY_WORD_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < word.length(); ++i) {
+      if (Character.isDigit(word.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Whether the words differ by exactly one substituted, inserted or deleted character.
+  private static boolean oneEditApart(final String a, final String b) {
+    final String longer = a.length() >= b.length() ? a : b;
+    final String shorter = a.length() >= b.length() ? b : a;
+    if (longer.length() - shorter.length() > 1) {
+      return false;
+    }
+    int prefix = 0;
+    while (prefix < shorter.length() && longer.charAt(prefix) == shorter.charAt(prefix)) {
+      ++prefix;
+    }
+    final int skip = longer.length() == shorter.length() ? 1 : 0;
+    return longer.regionMatches(
+        prefix + 1, shorter, prefix + skip, shorter.length() - prefix - skip);
+  }
+
+  private void expire(final long nowMs) {
+    final Iterator<Entry> it = entries.iterator();
+    while (it.hasNext() && nowMs - it.next().spokenMs > ttlMs) {
+      it.remove();
+    }
+  }
+}
@@ -20,9 +20,9 @@ import android.graphics.Bitmap;
 import android.os.Trace;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.StringTokenizer;
 
 /**
  * JNI wrapper class for the Tensorflow native code.
@@ -30,52 +30,145 @@ import java.util.StringTokenizer;
 public class TensorflowClassifier implements Classifier {
   private static final String TAG = "TensorflowClassifier";
 
+  // The detector only has a handful of classes, so this is plenty.
+  private static final int MAX_RESULTS = 5;
+
   // jni native methods.
+  /**
+   * Loads the graph and creates the session. A session that is already open is kept as is; call
+   * {@link #close()} first to recreate it with other settings.
+   *
+   * @param intraOpThreads Threads used within a single op, or 0 for one per core.
+   * @param interOpThreads Threads used to run independent ops, or 0 for one per core.
+   */
   public native int initializeTensorflow(
       AssetManager assetManager,
       String model,
       String labels,
       int numClasses,
       int inputSize,
-      int imageMean);
+      int imageMean,
+      int intraOpThreads,
+      int interOpThreads);
+
+  private native void closeTensorflow();
+
+  private native String[] getLabels();
 
-  private native String classifyImageBmp(Bitmap bitmap);
+  // These write the class indices and scores of the top results into the given arrays, best first,
+  // and return how many were written, or -1 on failure.
+  private native int classifyImageBmp(Bitmap bitmap, int[] classes, float[] scores);
 
-  private native String classifyImageRgb(int[] output, int width, int height);
+  private native int classifyImageRgb(
+      int[] output, int width, int height, int[] classes, float[] scores);
+
+  private native int classifyImageLuma(ByteBuffer tiles, int offset, int[] classes, float[] scores);
+
+  private native int classifyLumaTiles(
+      ByteBuffer tiles, int[] tileIndices, int numTiles, float[] confidences);
 
   static {
     System.loadLibrary("tensorflow_demo");
   }
 
+  // Fetched on first use for every session, so that results carry the same String instances every time.
+  private String[] labels = new String[0];
+  private String[] ids = new String[0];
+
+  // Receive the results of a single classification.
+  private final int[] resultClasses = new int[MAX_RESULTS];
+  private final float[] resultScores = new float[MAX_RESULTS];
+
   @Override
-  public List<Recognition> recognizeImage(final Bitmap bitmap) {
+  public synchronized List<Recognition> recognizeImage(final Bitmap bitmap) {
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("Recognize");
-    final ArrayList<Recognition> recognitions = new ArrayList<Recognition>();
-    for (final String result : classifyImageBmp(bitmap).split("\n")) {
-      Log.i(TAG, "Parsing [" + result + "]");
-
-      // Clean up the string as needed
-      final StringTokenizer st = new StringTokenizer(result);
-      if (!st.hasMoreTokens()) {
-        continue;
-      }
+    final List<Recognition> recognitions =
+        toRecognitions(classifyImageBmp(bitmap, resultClasses, resultScores));
+    Trace.endSection();
+    return recognitions;
+  }
 
-      final String id = st.nextToken();
-      final String confidenceString = st.nextToken();
-      final float confidence = Float.parseFloat(confidenceString);
+  /**
+   * Classifies one grayscale tile of a grid produced by
+   * {@link com.martinbede.secondsight.env.ImageUtils#extractLumaTiles}, skipping any Bitmap
+   * conversion.
+   *
+   * @param tiles A direct buffer holding the tile grid of 8 bit luminance samples.
+   * @param offset The offset of the first sample of the tile within the grid.
+   */
+  public synchronized List<Recognition> recognizeLuma(final ByteBuffer tiles, final int offset) {
+    Trace.beginSection("RecognizeLuma");
+    final List<Recognition> recognitions =
+        toRecognitions(classifyImageLuma(tiles, offset, resultClasses, resultScores));
+    Trace.endSection();
+    return recognitions;
+  }
 
-      final String title =
-          result.substring(id.length() + confidenceString.length() + 2, result.length());
+  /**
+   * Classifies several grayscale tiles of a grid with a single run of the graph. The tiles are
+   * packed into one batched input tensor, so the per-call overhead is paid once per batch rather
+   * than once per tile.
+   *
+   * @param tiles A direct buffer holding the tile grid of 8 bit luminance samples.
+   * @param tileIndices The indices of the tiles to classify, in the order they are batched.
+   * @param numTiles The number of entries of tileIndices to use.
+   * @param confidences Receives the text confidence of every classified tile at its tile index.
+   * @return false if inference failed, in which case confidences is left untouched.
+   */
+  public boolean recognizeTiles(
+      final ByteBuffer tiles,
+      final int[] tileIndices,
+      final int numTiles,
+      final float[] confidences) {
+    Trace.beginSection("RecognizeTiles");
+    final boolean success = classifyLumaTiles(tiles, tileIndices, numTiles, confidences) == 0;
+    Trace.endSection();
+    return success;
+  }
 
-      if (!title.isEmpty()) {
-        recognitions.add(new Recognition(id, title, confidence, null));
+  private List<Recognition> toRecognitions(final int numResults) {
+    if (labels.length == 0) {
+      loadLabels();
+    }
+    final ArrayList<Recognition> recognitions = new ArrayList<Recognition>(Math.max(0, numResults));
+    for (int i = 0; i < numResults; ++i) {
+      final int index = resultClasses[i];
+      if (index < labels.length && !labels[index].isEmpty()) {
+        recognitions.add(new Recognition(ids[index], labels[index], resultScores[i], null));
       }
     }
-    Trace.endSection();
     return recognitions;
   }
 
+  private void loadLabels() {
+    labels = getLabels();
+    ids = new String[labels.length];
+    for (int i = 0; i < labels.length; ++i) {
+      labels[i] = labels[i].intern();
+      ids[i] = Integer.toString(i).intern();
+    }
+    Log.i(TAG, labels.length + " labels loaded");
+  }
+
+  /**
+   * Loads the graph with Tensorflow's default threading.
+   */
+  public int initializeTensorflow(
+      final AssetManager assetManager,
+      final String model,
+      final String labels,
+      final int numClasses,
+      final int inputSize,
+      final int imageMean) {
+    return initializeTensorflow(
+        assetManager, model, labels, numClasses, inputSize, imageMean, 0, 0);
+  }
+
   @Override
-  public void close() {}
+  public synchronized void close() {
+    closeTensorflow();
+    labels = new String[0];
+    ids = new String[0];
+  }
 }
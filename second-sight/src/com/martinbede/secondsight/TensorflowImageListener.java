@@ -17,18 +17,14 @@ package com.martinbede.secondsight;
 
 import android.content.res.AssetManager;
 import android.content.ContextWrapper;
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.media.Image;
 import android.media.Image.Plane;
 import android.media.ImageReader;
 import android.media.ImageReader.OnImageAvailableListener;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.os.Trace;
-import android.os.AsyncTask;
-import android.speech.tts.TextToSpeech;
 
 import junit.framework.Assert;
 
@@ -37,32 +33,26 @@ import com.martinbede.secondsight.env.Logger;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.lang.Math;
-import java.io.*;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import android.content.Context;
-import android.util.Base64;
 
-import com.google.api.client.extensions.android.http.AndroidHttp;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
-import com.google.api.services.vision.v1.Vision;
-import com.google.api.services.vision.v1.VisionRequestInitializer;
-import com.google.api.services.vision.v1.model.AnnotateImageRequest;
-import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
-import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
-import com.google.api.services.vision.v1.model.EntityAnnotation;
-import com.google.api.services.vision.v1.model.Feature;
 
 /**
- * Class that takes in preview frames and converts the image to Bitmaps to process with Tensorflow and Google Cloud Vision. If text is returned by GCV, it is read aloud.
+ * Class that takes in preview frames and converts the image to Bitmaps to process with Tensorflow and an OcrEngine such as Google Cloud Vision. If text is returned, it is read aloud.
  */
 public class TensorflowImageListener implements OnImageAvailableListener {
   private static final Logger LOGGER = new Logger();
 
   private static final boolean SAVE_PREVIEW_BITMAP = false;
 
+  // Feeds the detector straight from the Y plane instead of going through an ARGB Bitmap. Frames
+  // sent to Cloud Vision are then rebuilt in grayscale from the luma tiles.
+  private static final boolean USE_LUMA_PIPELINE = true;
+
   private static final String MODEL_FILE =
     "file:///android_asset/tensorflow_text_detector.pb";
   private static final String LABEL_FILE =
@@ -74,18 +64,119 @@ public class TensorflowImageListener implements OnImageAvailableListener {
 
   private static final float CONF_THRESH = 0.8f;
 
+  // Once a tile gets this confident, an upload is likely to follow and the connection to Cloud
+  // Vision is opened ahead of it.
+  private static final float WARM_UP_THRESH = 0.5f;
+
+  // From this confidence on the text is read speculatively while the detection settles, so the
+  // upload overlaps with the announcement. The result is only spoken once the detection crosses
+  // CONF_THRESH, and is dropped if that does not happen within SPECULATION_WINDOW_MS.
+  private static final float SPECULATIVE_THRESH = 0.6f;
+  private static final long SPECULATION_WINDOW_MS = 1500;
+
+  // Prevents immediate rereading: how long announcements are held back after one was made, and
+  // how often the detector runs in the meantime.
+  private static final long COOLDOWN_MS = 5000;
+  private static final long COOLDOWN_DETECTOR_INTERVAL_MS = 500;
+
+  // Tiles are classified center first, in batches that grow up to MAX_BATCH_SIZE tiles.
+  private static final int FIRST_BATCH_SIZE = 4;
+  private static final int MAX_BATCH_SIZE = 32;
+
+  // A tile whose thumbnail moved by less than this many luminance steps on average keeps its
+  // previous confidence, for up to TILE_CACHE_MAX_AGE_MS.
+  private static final int TILE_CHANGE_THRESHOLD = 6;
+  private static final long TILE_CACHE_MAX_AGE_MS = 2000;
+
+  // Frames with a lower focus measure are too blurred to be worth classifying. Uploads use the
+  // sharpest frame of the last SHARPEST_FRAME_WINDOW_MS.
+  private static final float SHARPNESS_THRESHOLD = 40.0f;
+  private static final long SHARPEST_FRAME_WINDOW_MS = 1000;
+
+  // Uploads are cropped to the text regions, grown by this fraction of a tile on every side. At
+  // most MAX_UPLOAD_CROPS crops are sent for a frame.
+  private static final float UPLOAD_PADDING = 0.5f;
+  private static final int MAX_UPLOAD_CROPS = 3;
+
+  // Every crop is encoded to fit a budget that lets it upload in about UPLOAD_TARGET_MS at the
+  // measured throughput, within the given bounds.
+  private static final int UPLOAD_MIN_BYTES = 8 * 1024;
+  private static final int UPLOAD_MAX_BYTES = 64 * 1024;
+  private static final long UPLOAD_TARGET_MS = 500;
+  private static final float UPLOAD_MIN_SCALE = 0.5f;
+  private static final int UPLOAD_MIN_QUALITY = 50;
+  private static final int UPLOAD_MAX_QUALITY = 85;
+
+  // OCR results are reused for crops whose perceptual hash differs in at most OCR_CACHE_DISTANCE
+  // bits for OCR_CACHE_JITTER_MS, while the camera shakes over the same label, and for crops with
+  // the same exact fingerprint for up to OCR_CACHE_TTL_MS.
+  private static final int OCR_CACHE_SIZE = 32;
+  private static final int OCR_CACHE_DISTANCE = 6;
+  private static final long OCR_CACHE_JITTER_MS = 2000;
+  private static final long OCR_CACHE_TTL_MS = 5 * 60 * 1000;
+
+  // Texts whose words agree, or crops with the same exact fingerprint, are not read aloud again
+  // for SPOKEN_MEMORY_TTL_MS after they were heard.
+  private static final int SPOKEN_MEMORY_SIZE = 16;
+  private static final long SPOKEN_MEMORY_TTL_MS = 60 * 1000;
+
+  // Tensorflow session threading, 0 meaning one thread per core, and the number of threads that
+  // classify the tiles of a batch concurrently. The workers share the session's intra op pool, so
+  // each run can use all of it while the others wait; the benchmark measures smaller pools.
+  private static final int INTRA_OP_THREADS = 0;
+  private static final int INTER_OP_THREADS = 0;
+  private static final int INFERENCE_WORKERS = 2;
+
+  // Measures all threading setups on the first sharp frame and keeps the fastest one.
+  private static final boolean RUN_INFERENCE_BENCHMARK = false;
+  private static final int BENCHMARK_PASSES = 5;
+
   // TODO(andrewharp): Get orientation programatically.
   private final int screenRotation = 90;
 
   private final TensorflowClassifier tensorflow = new TensorflowClassifier();
 
-  private int previewWidth = 0;
-  private int previewHeight = 0;
-  private byte[][] yuvBytes;
-  private int[] rgbBytes = null;
-  private Bitmap rgbFrameBitmap = null;
-
-  private boolean computing = false;
+  // Owned by the ImageReader thread.
+  private final FrameTiler tiler = new FrameTiler(SEGMENT_SIZE, !USE_LUMA_PIPELINE);
+
+  // Hands the newest preprocessed frame over to the inference thread.
+  private final FrameMailbox<TileFrame> mailbox = new FrameMailbox<TileFrame>();
+  private final AtomicBoolean inferenceScheduled = new AtomicBoolean(false);
+
+  // Owned by the inference thread.
+  private int[] uploadPixels = null;
+  private final DetectionCooldown cooldown =
+    new DetectionCooldown(COOLDOWN_MS, COOLDOWN_DETECTOR_INTERVAL_MS);
+  private final TileScanPlanner scanPlanner =
+    new TileScanPlanner(FIRST_BATCH_SIZE, MAX_BATCH_SIZE);
+  private final TileChangeDetector changeDetector =
+    new TileChangeDetector(TILE_CHANGE_THRESHOLD, TILE_CACHE_MAX_AGE_MS);
+  private final SharpestFrameSelector sharpestFrame =
+    new SharpestFrameSelector(SHARPEST_FRAME_WINDOW_MS);
+  private final TextRegionFinder textRegions = new TextRegionFinder(SPECULATIVE_THRESH);
+  private final TextRegionFinder uploadRegionFinder = new TextRegionFinder(SPECULATIVE_THRESH);
+  private final UploadPlanner uploadPlanner = new UploadPlanner(UPLOAD_PADDING, MAX_UPLOAD_CROPS);
+  private final UploadEncoder uploadEncoder =
+    new UploadEncoder(
+      UPLOAD_MIN_BYTES, UPLOAD_MAX_BYTES, UPLOAD_TARGET_MS,
+      UPLOAD_MIN_SCALE, UPLOAD_MIN_QUALITY, UPLOAD_MAX_QUALITY);
+  private final FrameMetrics metrics = new FrameMetrics();
+  private PendingRead pendingRead = null;
+  private int speculationsConfirmed = 0;
+  private int speculationsAbandoned = 0;
+
+  // Filled in by the upload tasks, read by the inference thread. Backed by the persistent
+  // OcrStore of the activity.
+  private final OcrCache ocrCache =
+    new OcrCache(OCR_CACHE_SIZE, OCR_CACHE_DISTANCE, OCR_CACHE_JITTER_MS, OCR_CACHE_TTL_MS);
+  private final OcrCache.Hasher cropHasher = new OcrCache.Hasher();
+  // What was read aloud lately, filled in as the speech engine finishes texts.
+  private final SpokenTextMemory spokenTexts =
+    new SpokenTextMemory(SPOKEN_MEMORY_SIZE, SPOKEN_MEMORY_TTL_MS);
+  private TileInferencePool inferencePool;
+  private boolean benchmarkPending = RUN_INFERENCE_BENCHMARK;
+
+  private AssetManager assetManager;
   private Handler handler;
 
   private RecognitionScoreView scoreView;
@@ -95,124 +186,231 @@ public class TensorflowImageListener implements OnImageAvailableListener {
     final RecognitionScoreView scoreView,
     final Handler handler) {
     tensorflow.initializeTensorflow(
-      assetManager, MODEL_FILE, LABEL_FILE, NUM_CLASSES, SEGMENT_SIZE, IMAGE_MEAN);
+      assetManager, MODEL_FILE, LABEL_FILE, NUM_CLASSES, SEGMENT_SIZE, IMAGE_MEAN,
+      INTRA_OP_THREADS, INTER_OP_THREADS);
+    inferencePool = new TileInferencePool(tensorflow, INFERENCE_WORKERS);
+    this.assetManager = assetManager;
     this.scoreView = scoreView;
     this.handler = handler;
   }
 
-  private void drawResizedBitmaps(final Bitmap src, final List<Bitmap> dst) {
-    // Resize the original image so that we only get complete segments
+  // Reads the text of the images with a single request. hashes and fingerprints hold the
+  // perceptual hash and the exact fingerprint of every image, in the same order.
+  private void recognizeText(
+    final List<UploadEncoder.EncodedImage> images,
+    final List<Long> hashes,
+    final List<Long> fingerprints,
+    final PendingRead read) {
+    LOGGER.v("Starting OCR request for %d images", images.size());
+    final OcrScheduler scheduler = getCameraActivity().ocrScheduler;
+    scheduler.submit(images, new OcrScheduler.Callback() {
+      @Override
+      public void onTextRead(
+        final List<UploadEncoder.EncodedImage> images,
+        final List<String> texts,
+        final long latencyMs) {
+        int encodedBytes = 0;
+        for (final UploadEncoder.EncodedImage image : images) {
+          encodedBytes += image.encodedBytes;
+        }
+        uploadEncoder.onUploadFinished(encodedBytes, latencyMs);
+        LOGGER.i("Upload metrics: %s, OCR took %dms, next budget %d bytes, fixed latency %dms (%s)",
+                 images, latencyMs, uploadEncoder.getBudget(), uploadEncoder.getFixedLatencyMs(),
+                 scheduler);
+
+        // Map every text back to the region it was read from. Regions that could not be read
+        // are neither kept nor spoken.
+        final long now = SystemClock.uptimeMillis();
+        final List<String> readTexts = new ArrayList<String>(texts.size());
+        final List<Long> readFingerprints = new ArrayList<Long>(texts.size());
+        for (int i = 0; i < texts.size(); ++i) {
+          final String text = texts.get(i);
+          if (text == null) {
+            continue;
+          }
+          LOGGER.v(text);
+          if (!text.isEmpty()) {
+            ocrCache.put(hashes.get(i), fingerprints.get(i), text, now);
+            getCameraActivity().ocrStore.put(fingerprints.get(i), text);
+          }
+          readTexts.add(text);
+          readFingerprints.add(fingerprints.get(i));
+        }
+        read.deliver(readTexts, readFingerprints);
+      }
 
-    final Matrix matrix = new Matrix();
+      @Override
+      public void onFailed(final List<UploadEncoder.EncodedImage> images, final IOException e) {
+        if (e instanceof GoogleJsonResponseException) {
+          LOGGER.d("failed to make API request because " +
+                   ((GoogleJsonResponseException) e).getContent());
+        } else {
+          LOGGER.d("failed to make API request because of other IOException " +
+                   e.getMessage());
+        }
+        read.deliver(
+          Collections.singletonList("Text recognition failed. Check logs for details."), null);
+      }
+    });
+  }
+
+  // Reused for every frame, so that handing a frame to the classifier does not allocate.
+  private final Runnable inferenceRunnable =
+    new Runnable() {
+      @Override
+      public void run() {
+        // Cleared before taking, so that a frame published from here on schedules another run.
+        inferenceScheduled.set(false);
+
+        final TileFrame frame = mailbox.take();
+        if (frame == null) {
+          return;
+        }
 
-    final int new_width = (int)(Math.ceil((float)src.getWidth() / SEGMENT_SIZE) * SEGMENT_SIZE);
-    final int new_height = (int)(Math.ceil((float)src.getHeight() / SEGMENT_SIZE) * SEGMENT_SIZE);
+        try {
+          processFrame(frame);
+        } finally {
+          final TileFrame unused = sharpestFrame.offer(frame, SystemClock.uptimeMillis());
+          if (unused != null) {
+            tiler.recycleFrame(unused);
+          }
+        }
+      }
+    };
+
+  private void processFrame(final TileFrame frame) {
+    final long now = SystemClock.uptimeMillis();
+    metrics.reset(frame);
+    if (!cooldown.shouldRunDetector(now)) {
+      return;
+    }
 
-    final float horizontalScale = new_width / src.getWidth();
-    final float verticalScale = new_height / src.getHeight();
-    matrix.postScale(horizontalScale, verticalScale);
+    if (frame.sharpness < SHARPNESS_THRESHOLD) {
+      LOGGER.v("Frame metrics: %s", metrics);
+      return;
+    }
+    metrics.classified = true;
+    frame.classified = true;
 
-    LOGGER.v("Image will be scaled to: " + Integer.toString(new_width) + ", " + Integer.toString(new_height));
+    if (benchmarkPending) {
+      benchmarkPending = false;
+      runBenchmark(frame);
+    }
 
-    final Bitmap resizedBitmap = Bitmap.createBitmap(new_width, new_height, Config.ARGB_8888);
-    final Canvas c = new Canvas(resizedBitmap);
-    c.drawBitmap(src, matrix, null);
+    float confText = 0.0f;
 
-    LOGGER.v("Finished resizing source image.");
+    // Tiles that did not change since they were last classified keep their confidence.
+    changeDetector.reuseUnchanged(frame, now);
+    for (final float confidence : frame.confidences) {
+      confText = Math.max(confidence, confText);
+    }
 
+    // Scan the most promising of the other tiles first and stop as soon as one of them is text.
+    scanPlanner.begin(frame.cols, frame.rows, frame.confidences);
+    while (confText <= CONF_THRESH) {
+      final int batchSize = scanPlanner.nextBatch();
+      if (batchSize == 0
+          || !inferencePool.recognizeTiles(
+              frame.tiles, scanPlanner.getBatch(), batchSize, frame.confidences)) {
+        break;
+      }
+      for (int i = 0; i < batchSize; ++i) {
+        confText = Math.max(frame.confidences[scanPlanner.getBatch()[i]], confText);
+      }
+    }
 
-    // Extract the segments from the resized image
-    for (int horizontal_offset = 0; horizontal_offset < new_width; horizontal_offset += SEGMENT_SIZE)
-      for (int vertical_offset = 0; vertical_offset < new_height; vertical_offset += SEGMENT_SIZE) {
-      LOGGER.v("Extracting segment: " + Integer.toString(horizontal_offset) + ", " + Integer.toString(vertical_offset));
+    // Text does not end where the scan stopped: grow the classified area around the text tiles
+    // until the regions are closed off.
+    int tilesGrown = 0;
+    int borderSize;
+    while ((borderSize = textRegions.findBorder(frame, MAX_BATCH_SIZE)) > 0
+        && inferencePool.recognizeTiles(
+            frame.tiles, textRegions.getBorder(), borderSize, frame.confidences)) {
+      for (int i = 0; i < borderSize; ++i) {
+        confText = Math.max(frame.confidences[textRegions.getBorder()[i]], confText);
+      }
+      tilesGrown += borderSize;
+    }
+    scanPlanner.end(frame.confidences);
+    changeDetector.update(frame, now);
+    final List<Classifier.Recognition> regions = textRegions.find(frame);
+
+    metrics.tilesEvaluated = scanPlanner.getNumEvaluated() + tilesGrown;
+    metrics.tilesReused = changeDetector.getFrameReused();
+    metrics.maxConfidence = confText;
+    metrics.textRegions = regions.size();
+    metrics.inferenceMs = SystemClock.uptimeMillis() - now;
+    LOGGER.v("Frame metrics: %s (%d reused, %d recomputed in total)",
+        metrics, changeDetector.getTotalReused(), changeDetector.getTotalRecomputed());
+    if (!regions.isEmpty()) {
+      LOGGER.v("Text regions: %s", regions);
+    }
 
-      dst.add(Bitmap.createBitmap(resizedBitmap, horizontal_offset, vertical_offset, SEGMENT_SIZE, SEGMENT_SIZE));
+    final boolean canAnnounce = cooldown.canAnnounce(now);
+    if (confText > WARM_UP_THRESH && canAnnounce) {
+      getCameraActivity().visionClient.warmUp();
     }
-  }
 
-  // The following is from the sample code for GCV
-  // https://github.com/GoogleCloudPlatform/cloud-vision
-  private void callCloudVision(final Bitmap bitmap) throws IOException {
-    // Switch text to loading
-    LOGGER.v("Starting API call");
+    // A speculative read whose detection faded or never got confident enough is not announced.
+    if (pendingRead != null
+        && (confText <= SPECULATIVE_THRESH || now - pendingRead.startMs > SPECULATION_WINDOW_MS)) {
+      pendingRead.abandon();
+      pendingRead = null;
+      getCameraActivity().ocrScheduler.cancelAll();
+      ++speculationsAbandoned;
+      LOGGER.i("Abandoned speculative read (%d confirmed, %d abandoned)",
+               speculationsConfirmed, speculationsAbandoned);
+    }
 
-    // Do the real work in an async task, because we need to use the network anyway
-    new AsyncTask<Object, Void, String>() {
-      @Override
-      protected String doInBackground(Object... params) {
-        try {
-          HttpTransport httpTransport = AndroidHttp.newCompatibleTransport();
-          JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
-
-          Vision.Builder builder = new Vision.Builder(httpTransport, jsonFactory, null);
-          builder.setVisionRequestInitializer(new
-                                              VisionRequestInitializer(scoreView.getContext().getString(R.string.CloudVisionApiKey)));
-          Vision vision = builder.build();
-
-          BatchAnnotateImagesRequest batchAnnotateImagesRequest =
-            new BatchAnnotateImagesRequest();
-          batchAnnotateImagesRequest.setRequests(new ArrayList<AnnotateImageRequest>() {{
-            AnnotateImageRequest annotateImageRequest = new AnnotateImageRequest();
-
-            // Add the image
-            com.google.api.services.vision.v1.model.Image base64EncodedImage = new com.google.api.services.vision.v1.model.Image();
-            // Convert the bitmap to a JPEG
-            // Just in case it's a format that Android understands but Cloud Vision
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 90, byteArrayOutputStream);
-            byte[] imageBytes = byteArrayOutputStream.toByteArray();
-
-            // Base64 encode the JPEG
-            base64EncodedImage.encodeContent(imageBytes);
-            annotateImageRequest.setImage(base64EncodedImage);
-
-            // add the features we want
-            annotateImageRequest.setFeatures(new ArrayList<Feature>() {{
-              Feature labelDetection = new Feature();
-              labelDetection.setType("TEXT_DETECTION");
-              labelDetection.setMaxResults(10);
-              add(labelDetection);
-            }});
-
-            // Add the list of one thing to the request
-            add(annotateImageRequest);
-          }});
-
-          Vision.Images.Annotate annotateRequest =
-            vision.images().annotate(batchAnnotateImagesRequest);
-          // Due to a bug: requests to Vision API containing large images fail when GZipped.
-          annotateRequest.setDisableGZipContent(true);
-          LOGGER.d("created Cloud Vision request object, sending request");
-
-          BatchAnnotateImagesResponse response = annotateRequest.execute();
-          return convertResponseToString(response);
-
-        } catch (GoogleJsonResponseException e) {
-          LOGGER.d("failed to make API request because " + e.getContent());
-        } catch (IOException e) {
-          LOGGER.d("failed to make API request because of other IOException " +
-                   e.getMessage());
+    // Only worth it if an announcement could follow, which waits for the speech to finish.
+    final boolean speaking = getCameraActivity().speech.isSpeaking();
+    if (confText > SPECULATIVE_THRESH && canAnnounce && !speaking && pendingRead == null) {
+      // Requests for earlier frames are no longer worth reading out.
+      getCameraActivity().ocrScheduler.cancelAll();
+
+      // Only the text is uploaded, cut from the sharpest recent frame. As the text may have
+      // moved since, the regions are those of that frame, unless it shows none.
+      pendingRead = new PendingRead(now);
+      TileFrame uploadFrame = sharpestFrame.select(frame, now);
+      List<Classifier.Recognition> uploadRegions = regions;
+      if (uploadFrame != frame) {
+        uploadRegions = uploadRegionFinder.find(uploadFrame);
+        if (uploadRegions.isEmpty()) {
+          uploadFrame = frame;
+          uploadRegions = regions;
         }
-        return "Cloud Vision API request failed. Check logs for details.";
       }
+      readCrops(uploadFrame, uploadPlanner.plan(uploadRegions, uploadFrame), now, pendingRead);
+    }
 
-      // Process the extracted text
-      protected void onPostExecute(String result) {
-        LOGGER.v(result);
+    if (confText > CONF_THRESH && canAnnounce && !speaking) {
+      getCameraActivity().speech.cue(CameraActivity.TEXT_DETECTED_PROMPT);
 
-        List<Classifier.Recognition> finalResults = new ArrayList<Classifier.Recognition>();
-        finalResults.add(new Classifier.Recognition("0", result, 1.0f, null));
+      // Whatever the read already returned is spoken right after the announcement, the rest as
+      // soon as it arrives.
+      pendingRead.confirm();
+      pendingRead = null;
+      ++speculationsConfirmed;
 
-        scoreView.setResults(finalResults);
+      // The detector keeps running during the cooldown, it just won't announce anything.
+      cooldown.onAnnounced(now);
+    }
+  }
 
-        getCameraActivity().tts.speak(result, TextToSpeech.QUEUE_ADD, null);
-      }
-    }.execute();
+  private void runBenchmark(final TileFrame frame) {
+    final InferenceBenchmark benchmark = new InferenceBenchmark(
+      tensorflow, assetManager, MODEL_FILE, LABEL_FILE, NUM_CLASSES, SEGMENT_SIZE, IMAGE_MEAN);
+    final InferenceBenchmark.Result best = benchmark.run(frame, BENCHMARK_PASSES);
+    if (best != null) {
+      inferencePool.close();
+      inferencePool = new TileInferencePool(tensorflow, best.numWorkers);
+    }
   }
 
   @Override
   public void onImageAvailable(final ImageReader reader) {
     Image image = null;
+    TileFrame frame = null;
     try {
       image = reader.acquireLatestImage();
 
@@ -220,115 +418,261 @@ public class TensorflowImageListener implements OnImageAvailableListener {
         return;
       }
 
-      // No mutex needed as this method is not reentrant.
-      if (computing) {
-        image.close();
-        return;
-      }
-      computing = true;
-
       Trace.beginSection("imageAvailable");
 
       final Plane[] planes = image.getPlanes();
 
-      // Initialize the storage bitmaps once when the resolution is known.
-      if (previewWidth != image.getWidth() || previewHeight != image.getHeight()) {
-        previewWidth = image.getWidth();
-        previewHeight = image.getHeight();
-
-        LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-        rgbBytes = new int[previewWidth * previewHeight];
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-
-        yuvBytes = new byte[planes.length][];
-        for (int i = 0; i < planes.length; ++i) {
-          yuvBytes[i] = new byte[planes[i].getBuffer().capacity()];
-        }
+      // Frames are reallocated by the tiler when the resolution changes.
+      tiler.configure(image.getWidth(), image.getHeight());
+      frame = tiler.obtainFrame();
+      frame.timestamp = image.getTimestamp();
+      tiler.measureSharpness(planes[0], frame);
+
+      // The planes are read in place from their direct buffers.
+      if (USE_LUMA_PIPELINE) {
+        tiler.tileLuma(planes[0], frame);
+      } else {
+        ImageUtils.convertYUV420PlanesToARGB8888(
+          planes[0].getBuffer(),
+          planes[1].getBuffer(),
+          planes[2].getBuffer(),
+          frame.argb,
+          frame.width,
+          frame.height,
+          planes[0].getRowStride(),
+          planes[1].getRowStride(),
+          planes[1].getPixelStride());
+        tiler.tileARGB8888(frame);
       }
 
-      for (int i = 0; i < planes.length; ++i) {
-        planes[i].getBuffer().get(yuvBytes[i]);
-      }
-
-      final int yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
-      ImageUtils.convertYUV420ToARGB8888(
-        yuvBytes[0],
-        yuvBytes[1],
-        yuvBytes[2],
-        rgbBytes,
-        previewWidth,
-        previewHeight,
-        yRowStride,
-        uvRowStride,
-        uvPixelStride,
-        false);
-
       image.close();
     } catch (final Exception e) {
       if (image != null) {
         image.close();
       }
+      if (frame != null) {
+        tiler.recycleFrame(frame);
+      }
       LOGGER.e(e, "Exception!");
       Trace.endSection();
       return;
     }
 
-    // Preprocesses the image
-    rgbFrameBitmap.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
-    final List<Bitmap> segments = new ArrayList<Bitmap>();
-    drawResizedBitmaps(rgbFrameBitmap, segments);
+    // Latest frame wins: a frame the classifier has not picked up yet is superseded by this one.
+    final TileFrame stale = mailbox.publish(frame);
+    if (stale != null) {
+      tiler.recycleFrame(stale);
+    }
 
     // A separate thread for the classifier
-    handler.post(
-      new Runnable() {
-        @Override
-        public void run() {
-          float confText = 0.0f;
-
-          for (final Bitmap segment : segments) {
-            final List<Classifier.Recognition> results = tensorflow.recognizeImage(segment);
-
-            if (results.get(0).getTitle().equals("text"))
-              confText = Math.max(results.get(0).getConfidence(), confText);
-            else
-              confText = Math.max(1.0f - results.get(0).getConfidence(), confText);
-          }
+    if (inferenceScheduled.compareAndSet(false, true)) {
+      handler.post(inferenceRunnable);
+    }
 
-          if (confText > CONF_THRESH && !getCameraActivity().tts.isSpeaking()) {
-            getCameraActivity().tts.speak("Text detected...", TextToSpeech.QUEUE_ADD, null);
+    Trace.endSection();
+  }
 
-            try {
-              callCloudVision(rgbFrameBitmap);
-            } catch (IOException exception) {}
+  /**
+   * Reads the text of the crops of the frame, or of the whole frame if there are no crops. Crops
+   * that were read recently are answered from the cache, the others are uploaded.
+   */
+  private void readCrops(
+    final TileFrame frame, final List<Rect> crops, final long now, final PendingRead read) {
+    final int[] pixels;
+    final int width;
+    final int height;
+    if (frame.argb != null) {
+      pixels = frame.argb;
+      width = frame.width;
+      height = frame.height;
+    } else {
+      // In luma mode the frame is rebuilt in grayscale from the tile grid, which covers the frame
+      // at about its own resolution, and the crops are scaled to the grid.
+      width = frame.getGridWidth();
+      height = frame.getGridHeight();
+      if (uploadPixels == null || uploadPixels.length != width * height) {
+        uploadPixels = new int[width * height];
+      }
+      FrameTiler.toARGB8888(frame, uploadPixels);
+      pixels = uploadPixels;
+    }
 
+    // Crops that were not read before all go out in one request.
+    final List<Rect> uploads = new ArrayList<Rect>(Math.max(1, crops.size()));
+    final List<Long> hashes = new ArrayList<Long>(Math.max(1, crops.size()));
+    final List<Long> fingerprints = new ArrayList<Long>(Math.max(1, crops.size()));
+    if (crops.isEmpty()) {
+      readCrop(pixels, new Rect(0, 0, width, height), width, now, read,
+               uploads, hashes, fingerprints);
+    }
+    for (final Rect crop : crops) {
+      final int left = crop.left * width / frame.width;
+      final int top = crop.top * height / frame.height;
+      final int right = Math.max(left + 1, crop.right * width / frame.width);
+      final int bottom = Math.max(top + 1, crop.bottom * height / frame.height);
+      readCrop(pixels, new Rect(left, top, right, bottom), width, now, read,
+               uploads, hashes, fingerprints);
+    }
+    if (uploads.isEmpty()) {
+      return;
+    }
 
+    // The budget is for the whole request, so the crops share it.
+    final int budget = uploadEncoder.getBudget() / uploads.size();
+    final List<UploadEncoder.EncodedImage> images =
+      new ArrayList<UploadEncoder.EncodedImage>(uploads.size());
+    for (final Rect upload : uploads) {
+      images.add(
+        uploadEncoder.encode(
+          pixels, upload.top * width + upload.left, width, upload.width(), upload.height(),
+          budget));
+    }
+    recognizeText(images, hashes, fingerprints, read);
+  }
 
-            // Prevents immediate rereading
-            try {
-              Thread.sleep(5000);
-            } catch(InterruptedException exception) {
-              Thread.currentThread().interrupt();
-            }
-          }
+  // Answers a crop from what was read before, or else adds it to the crops to upload.
+  private void readCrop(
+    final int[] pixels,
+    final Rect crop,
+    final int stride,
+    final long now,
+    final PendingRead read,
+    final List<Rect> uploads,
+    final List<Long> hashes,
+    final List<Long> fingerprints) {
+    final int offset = crop.top * stride + crop.left;
+    final int width = crop.width();
+    final int height = crop.height();
+    final long hash = cropHasher.hash(pixels, offset, stride, width, height);
+    final long fingerprint = cropHasher.fingerprint(pixels, offset, stride, width, height);
+
+    // The very image of a label that was just read aloud is not read again.
+    final String spoken = spokenTexts.lookupRegion(fingerprint, now);
+    if (spoken != null) {
+      LOGGER.i("Crop %016x was just read aloud", fingerprint);
+      read.deliver(Collections.singletonList(spoken), Collections.singletonList(fingerprint));
+      return;
+    }
 
-          computing = false;
-        }
-      });
+    final String cached = ocrCache.lookup(hash, fingerprint, now);
+    if (cached != null) {
+      LOGGER.i("OCR cache hit for %016x (%d hits, %d misses)",
+               hash, ocrCache.getHits(), ocrCache.getMisses());
+      read.deliver(Collections.singletonList(cached), Collections.singletonList(fingerprint));
+      return;
+    }
 
-    Trace.endSection();
+    // Then the results of earlier sessions, which must be of the very same image.
+    final OcrStore store = getCameraActivity().ocrStore;
+    final String stored = store.lookup(fingerprint);
+    if (stored != null) {
+      LOGGER.i("OCR store hit for %016x (%d hits, %d misses)",
+               fingerprint, store.getHits(), store.getMisses());
+      ocrCache.put(hash, fingerprint, stored, now);
+      read.deliver(Collections.singletonList(stored), Collections.singletonList(fingerprint));
+      return;
+    }
+
+    uploads.add(crop);
+    hashes.add(hash);
+    fingerprints.add(fingerprint);
   }
 
-  private String convertResponseToString(BatchAnnotateImagesResponse response) {
-    String message = "";
+  // The texts read for one detection. They are held back until the detection is announced, and
+  // are never spoken if it is abandoned. Delivered to from the OCR threads.
+  private class PendingRead {
+    final long startMs;
+    private final List<String> texts = new ArrayList<String>();
+    // The fingerprint of the crop every text was read from, or null for messages.
+    private final List<Long> fingerprints = new ArrayList<Long>();
+    private boolean confirmed = false;
+    private boolean abandoned = false;
+    boolean sameTextCued = false;
+
+    PendingRead(final long startMs) {
+      this.startMs = startMs;
+    }
 
-    List<EntityAnnotation> texts = response.getResponses().get(0).getTextAnnotations();
+    /**
+     * @param newFingerprints The fingerprints of the crops the texts were read from, or null if
+     *     the texts are not OCR results.
+     */
+    synchronized void deliver(final List<String> newTexts, final List<Long> newFingerprints) {
+      if (abandoned) {
+        return;
+      }
+      for (int i = 0; i < newTexts.size(); ++i) {
+        texts.add(newTexts.get(i));
+        fingerprints.add(newFingerprints != null ? newFingerprints.get(i) : null);
+      }
+      if (confirmed) {
+        flush();
+      }
+    }
 
-    if (texts != null && !texts.isEmpty())
-      message += texts.get(0).getDescription();
+    synchronized void confirm() {
+      confirmed = true;
+      flush();
+    }
+
+    synchronized void abandon() {
+      abandoned = true;
+      texts.clear();
+      fingerprints.clear();
+    }
+
+    private void flush() {
+      if (!texts.isEmpty()) {
+        readAloud(this, new ArrayList<String>(texts), new ArrayList<Long>(fingerprints));
+        texts.clear();
+        fingerprints.clear();
+      }
+    }
+  }
+
+  // Shows and speaks the texts that were read, in order. Whatever is left of an earlier read is
+  // not spoken anymore, and texts that were just spoken are replaced by a short cue. Called with
+  // the read locked.
+  private void readAloud(
+    final PendingRead read, final List<String> texts, final List<Long> fingerprints) {
+    final long now = SystemClock.uptimeMillis();
+    final List<Classifier.Recognition> finalResults = new ArrayList<Classifier.Recognition>();
+    final List<String> spoken = new ArrayList<String>(texts.size());
+    final List<Runnable> onSpoken = new ArrayList<Runnable>(texts.size());
+    boolean repeated = false;
+    for (int i = 0; i < texts.size(); ++i) {
+      final String text = texts.get(i);
+      if (text.isEmpty()) {
+        continue;
+      }
+      finalResults.add(
+        new Classifier.Recognition(Integer.toString(finalResults.size()), text, 1.0f, null));
+      final Long fingerprint = fingerprints.get(i);
+      if (fingerprint == null) {
+        spoken.add(text);
+        onSpoken.add(null);
+      } else if (spoken.contains(text) || spokenTexts.isRepeat(text, now)) {
+        repeated = true;
+      } else {
+        // Only remembered once it was heard, as it may yet be flushed.
+        spoken.add(text);
+        onSpoken.add(new Runnable() {
+          @Override
+          public void run() {
+            spokenTexts.remember(text, true, fingerprint, SystemClock.uptimeMillis());
+          }
+        });
+      }
+    }
+    if (!spoken.isEmpty()) {
+      getCameraActivity().speech.read(read, spoken, onSpoken);
+    } else if (repeated && !read.sameTextCued) {
+      LOGGER.i("Text was just read aloud (%d repeats)", spokenTexts.getRepeats());
+      getCameraActivity().speech.cue(CameraActivity.SAME_TEXT_PROMPT);
+      read.sameTextCued = true;
+    }
 
-    return message;
+    scoreView.setResults(finalResults);
   }
 
   // From the official support library
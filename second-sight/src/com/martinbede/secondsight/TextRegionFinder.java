@@ -0,0 +1,210 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import android.graphics.RectF;
+
+import com.martinbede.secondsight.Classifier.Recognition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Turns the per-tile text confidences of a frame into text regions. Tiles above the threshold that
+ * touch along an edge are grouped together, and every group becomes a {@link Recognition} whose
+ * location is its bounding box in frame pixels and whose confidence is that of its best tile. The
+ * confidences of the last frame are kept as a heatmap, as the frame itself goes back to the pool.
+ *
+ * <p>A scan that stops early leaves tiles next to text unclassified, which would cut regions short.
+ * {@link #findBorder} lists these tiles, so that they can be classified before regions are found.
+ *
+ * <p>Not thread-safe; meant to be owned by the inference thread.
+ */
+public class TextRegionFinder {
+  private static final String REGION_ID = "text";
+
+  private final float threshold;
+
+  private int cols = 0;
+  private int rows = 0;
+  private float[] heatmap = new float[0];
+
+  // Region of every tile, or -1, and the tiles still to be visited while filling a region.
+  private int[] regionOfTile = new int[0];
+  private int[] pending = new int[0];
+
+  // Unclassified tiles next to text tiles, as found by findBorder.
+  private int[] border = new int[0];
+
+  private final ArrayList<Recognition> regions = new ArrayList<Recognition>();
+
+  /**
+   * @param threshold The confidence above which a tile counts as text.
+   */
+  public TextRegionFinder(final float threshold) {
+    this.threshold = threshold;
+  }
+
+  /**
+   * Finds the text regions of the frame, best first.
+   *
+   * @return A list that is reused by the next call.
+   */
+  public List<Recognition> find(final TileFrame frame) {
+    configure(frame.cols, frame.rows);
+    System.arraycopy(frame.confidences, 0, heatmap, 0, heatmap.length);
+    Arrays.fill(regionOfTile, -1);
+    regions.clear();
+
+    for (int tile = 0; tile < heatmap.length; ++tile) {
+      if (regionOfTile[tile] < 0 && heatmap[tile] > threshold) {
+        regions.add(fill(tile, frame.width, frame.height));
+      }
+    }
+
+    if (regions.size() > 1) {
+      Collections.sort(regions, BY_CONFIDENCE);
+    }
+    return regions;
+  }
+
+  /**
+   * Lists the tiles of the frame that were not classified but touch a tile above the threshold
+   * along an edge, into {@link #getBorder}.
+   *
+   * @param maxTiles The largest number of tiles to list.
+   * @return The number of tiles listed.
+   */
+  public int findBorder(final TileFrame frame, final int maxTiles) {
+    configure(frame.cols, frame.rows);
+    final float[] confidences = frame.confidences;
+    int numBorder = 0;
+    for (int tile = 0; tile < confidences.length && numBorder < maxTiles; ++tile) {
+      if (confidences[tile] != TileFrame.NOT_EVALUATED) {
+        continue;
+      }
+      final int col = tile % cols;
+      final int row = tile / cols;
+      if ((col > 0 && confidences[tile - 1] > threshold)
+          || (col < cols - 1 && confidences[tile + 1] > threshold)
+          || (row > 0 && confidences[tile - cols] > threshold)
+          || (row < rows - 1 && confidences[tile + cols] > threshold)) {
+        border[numBorder++] = tile;
+      }
+    }
+    return numBorder;
+  }
+
+  /**
+   * Returns the tiles listed by the last call to {@link #findBorder}.
+   */
+  public int[] getBorder() {
+    return border;
+  }
+
+  /**
+   * Returns the tile confidences of the last frame in row-major order, with
+   * {@link TileFrame#NOT_EVALUATED} for tiles that were not classified.
+   */
+  public float[] getHeatmap() {
+    return heatmap;
+  }
+
+  public int getCols() {
+    return cols;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  private void configure(final int cols, final int rows) {
+    if (this.cols == cols && this.rows == rows) {
+      return;
+    }
+    this.cols = cols;
+    this.rows = rows;
+    heatmap = new float[cols * rows];
+    regionOfTile = new int[cols * rows];
+    pending = new int[cols * rows];
+    border = new int[cols * rows];
+  }
+
+  // Flood fills the region containing the given tile and returns its bounds.
+  private Recognition fill(final int seed, final int width, final int height) {
+    final int region = regions.size();
+    int minCol = cols;
+    int minRow = rows;
+    int maxCol = -1;
+    int maxRow = -1;
+    float confidence = 0.0f;
+
+    int numPending = 0;
+    pending[numPending++] = seed;
+    regionOfTile[seed] = region;
+    while (numPending > 0) {
+      final int tile = pending[--numPending];
+      final int col = tile % cols;
+      final int row = tile / cols;
+      minCol = Math.min(minCol, col);
+      maxCol = Math.max(maxCol, col);
+      minRow = Math.min(minRow, row);
+      maxRow = Math.max(maxRow, row);
+      confidence = Math.max(confidence, heatmap[tile]);
+
+      if (col > 0) {
+        numPending = visit(tile - 1, region, numPending);
+      }
+      if (col < cols - 1) {
+        numPending = visit(tile + 1, region, numPending);
+      }
+      if (row > 0) {
+        numPending = visit(tile - cols, region, numPending);
+      }
+      if (row < rows - 1) {
+        numPending = visit(tile + cols, region, numPending);
+      }
+    }
+
+    // The tile grid is stretched over the whole frame.
+    final RectF location =
+        new RectF(
+            (float) minCol * width / cols,
+            (float) minRow * height / rows,
+            (float) (maxCol + 1) * width / cols,
+            (float) (maxRow + 1) * height / rows);
+    return new Recognition(REGION_ID, REGION_ID, confidence, location);
+  }
+
+  private int visit(final int tile, final int region, int numPending) {
+    if (regionOfTile[tile] < 0 && heatmap[tile] > threshold) {
+      regionOfTile[tile] = region;
+      pending[numPending++] = tile;
+    }
+    return numPending;
+  }
+
+  private static final Comparator<Recognition> BY_CONFIDENCE =
+      new Comparator<Recognition>() {
+        @Override
+        public int compare(final Recognition lhs, final Recognition rhs) {
+          return Float.compare(rhs.getConfidence(), lhs.getConfidence());
+        }
+      };
+}
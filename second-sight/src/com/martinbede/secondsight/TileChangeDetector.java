@@ -0,0 +1,148 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import java.util.Arrays;
+
+/**
+ * Skips classifier work on tiles that have not changed. Every tile's confidence is cached together
+ * with the thumbnail of the tile it was computed from. When the thumbnail of the same tile in a
+ * later frame is close enough to it, measured as the mean absolute difference of the thumbnail
+ * pixels, the cached confidence is reused instead of running the tile through the network again.
+ * Cached confidences expire after a while, so that a tile held still never goes stale entirely.
+ *
+ * <p>Not thread-safe; meant to be owned by the inference thread.
+ */
+public class TileChangeDetector {
+  private final int maxMeanDifference;
+  private final long maxAgeMs;
+
+  private int numTiles = 0;
+  private int thumbnailLength = 0;
+
+  private byte[] referenceThumbnails;
+  private float[] cachedConfidences;
+  private long[] cachedAtMs;
+  private boolean[] reused;
+
+  private long totalReused = 0;
+  private long totalRecomputed = 0;
+  private int frameReused = 0;
+  private int frameRecomputed = 0;
+
+  /**
+   * @param maxMeanDifference The largest mean absolute thumbnail difference, in 8 bit luminance
+   *     steps, for which a tile still counts as unchanged.
+   * @param maxAgeMs How long a cached confidence may be reused.
+   */
+  public TileChangeDetector(final int maxMeanDifference, final long maxAgeMs) {
+    this.maxMeanDifference = maxMeanDifference;
+    this.maxAgeMs = maxAgeMs;
+  }
+
+  /**
+   * Fills in the cached confidence of every tile of the frame that has not changed, and marks all
+   * other tiles as {@link TileFrame#NOT_EVALUATED}.
+   *
+   * @return the number of tiles whose confidence was reused.
+   */
+  public int reuseUnchanged(final TileFrame frame, final long nowMs) {
+    final int length = frame.thumbnailSize * frame.thumbnailSize;
+    if (numTiles != frame.getNumTiles() || thumbnailLength != length) {
+      configure(frame.getNumTiles(), length);
+    }
+
+    frameReused = 0;
+    frameRecomputed = 0;
+    for (int tile = 0; tile < numTiles; ++tile) {
+      reused[tile] =
+          cachedConfidences[tile] != TileFrame.NOT_EVALUATED
+              && nowMs - cachedAtMs[tile] <= maxAgeMs
+              && isUnchanged(frame.thumbnails, tile);
+      if (reused[tile]) {
+        frame.confidences[tile] = cachedConfidences[tile];
+        ++frameReused;
+      } else {
+        frame.confidences[tile] = TileFrame.NOT_EVALUATED;
+      }
+    }
+    totalReused += frameReused;
+    return frameReused;
+  }
+
+  /**
+   * Caches the confidences the classifier computed for the frame.
+   */
+  public void update(final TileFrame frame, final long nowMs) {
+    for (int tile = 0; tile < numTiles; ++tile) {
+      if (reused[tile] || frame.confidences[tile] == TileFrame.NOT_EVALUATED) {
+        continue;
+      }
+      cachedConfidences[tile] = frame.confidences[tile];
+      cachedAtMs[tile] = nowMs;
+      System.arraycopy(
+          frame.thumbnails, tile * thumbnailLength,
+          referenceThumbnails, tile * thumbnailLength, thumbnailLength);
+      ++frameRecomputed;
+    }
+    totalRecomputed += frameRecomputed;
+  }
+
+  /**
+   * Returns the number of tiles whose confidence was reused in the last frame.
+   */
+  public int getFrameReused() {
+    return frameReused;
+  }
+
+  /**
+   * Returns the number of tiles that were classified again in the last frame.
+   */
+  public int getFrameRecomputed() {
+    return frameRecomputed;
+  }
+
+  public long getTotalReused() {
+    return totalReused;
+  }
+
+  public long getTotalRecomputed() {
+    return totalRecomputed;
+  }
+
+  private boolean isUnchanged(final byte[] thumbnails, final int tile) {
+    final int offset = tile * thumbnailLength;
+    final int maxDifference = maxMeanDifference * thumbnailLength;
+    int difference = 0;
+    for (int i = offset; i < offset + thumbnailLength; ++i) {
+      difference += Math.abs((thumbnails[i] & 0xff) - (referenceThumbnails[i] & 0xff));
+      if (difference > maxDifference) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void configure(final int numTiles, final int thumbnailLength) {
+    this.numTiles = numTiles;
+    this.thumbnailLength = thumbnailLength;
+    referenceThumbnails = new byte[numTiles * thumbnailLength];
+    cachedConfidences = new float[numTiles];
+    cachedAtMs = new long[numTiles];
+    reused = new boolean[numTiles];
+    Arrays.fill(cachedConfidences, TileFrame.NOT_EVALUATED);
+  }
+}
@@ -0,0 +1,115 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A preview frame that has been preprocessed for the text detector. Besides the tile grid it
+ * carries everything the inference thread needs from the frame once the camera
+ * {@link android.media.Image} has been closed. Frames are pooled by {@link FrameTiler} and are
+ * owned by exactly one thread at a time.
+ */
+public class TileFrame {
+  /**
+   * The confidence of a tile that the classifier skipped.
+   */
+  public static final float NOT_EVALUATED = -1.0f;
+
+  /**
+   * Width of the source frame.
+   */
+  public final int width;
+
+  /**
+   * Height of the source frame.
+   */
+  public final int height;
+
+  public final int cols;
+  public final int rows;
+  public final int tileSize;
+
+  /**
+   * The tiles of the frame in row-major order, in native memory.
+   */
+  public final ByteBuffer tiles;
+
+  /**
+   * The text confidence of every tile, filled in by the classifier, or {@link #NOT_EVALUATED}.
+   */
+  public final float[] confidences;
+
+  /**
+   * A small block-averaged thumbnail of every tile, used to tell which tiles changed between
+   * frames.
+   */
+  public final byte[] thumbnails;
+
+  public final int thumbnailSize;
+
+  /**
+   * The full colour frame, or null if the pipeline only keeps luminance.
+   */
+  public final int[] argb;
+
+  /**
+   * Timestamp of the source frame, in nanoseconds.
+   */
+  public long timestamp;
+
+  /**
+   * Focus measure of the source frame; higher is sharper.
+   */
+  public float sharpness;
+
+  /**
+   * Whether the classifier ran on this frame, so that {@link #confidences} belong to it.
+   */
+  public boolean classified;
+
+  TileFrame(
+      final int width,
+      final int height,
+      final int cols,
+      final int rows,
+      final int tileSize,
+      final int thumbnailSize,
+      final boolean keepArgb) {
+    this.width = width;
+    this.height = height;
+    this.cols = cols;
+    this.rows = rows;
+    this.tileSize = tileSize;
+    tiles = ByteBuffer.allocateDirect(cols * rows * tileSize * tileSize);
+    confidences = new float[cols * rows];
+    this.thumbnailSize = thumbnailSize;
+    thumbnails = new byte[cols * rows * thumbnailSize * thumbnailSize];
+    argb = keepArgb ? new int[width * height] : null;
+  }
+
+  public int getNumTiles() {
+    return cols * rows;
+  }
+
+  public int getGridWidth() {
+    return cols * tileSize;
+  }
+
+  public int getGridHeight() {
+    return rows * tileSize;
+  }
+}
@@ -0,0 +1,184 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import com.martinbede.secondsight.env.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits a batch of tiles across several inference workers that run the shared Tensorflow session
+ * concurrently. The calling thread works on the first share itself, so a pool of one worker runs
+ * everything inline. Every worker writes into its own scratch array, as JNI may copy the whole
+ * confidence array back on release. Calls must not overlap, and reuse all of their state, so that
+ * classifying a frame does not allocate.
+ */
+public class TileInferencePool {
+  private static final Logger LOGGER = new Logger();
+
+  // Smaller shares would undo the benefit of batching.
+  private static final int MIN_TILES_PER_WORKER = 4;
+
+  private final TensorflowClassifier classifier;
+  private final Worker[] workers;
+  private final ExecutorService executor;
+
+  // The number of shares handed to other threads that are not done yet. Guarded by itself.
+  private final int[] pending = new int[1];
+
+  private class Worker implements Runnable {
+    int[] tileIndices = new int[0];
+    float[] confidences = new float[0];
+    int numTiles;
+    boolean success;
+
+    ByteBuffer tiles;
+
+    void prepare(final int numTiles, final int gridSize) {
+      if (tileIndices.length < numTiles) {
+        tileIndices = new int[numTiles];
+      }
+      if (confidences.length < gridSize) {
+        confidences = new float[gridSize];
+      }
+      this.numTiles = numTiles;
+    }
+
+    @Override
+    public void run() {
+      try {
+        success = classifier.recognizeTiles(tiles, tileIndices, numTiles, confidences);
+      } finally {
+        tiles = null;
+        synchronized (pending) {
+          --pending[0];
+          pending.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * @param classifier The classifier whose session the workers share.
+   * @param numWorkers The number of threads that classify tiles, including the calling one.
+   */
+  public TileInferencePool(final TensorflowClassifier classifier, final int numWorkers) {
+    this.classifier = classifier;
+    workers = new Worker[Math.max(1, numWorkers)];
+    for (int i = 0; i < workers.length; ++i) {
+      workers[i] = new Worker();
+    }
+    executor =
+        workers.length > 1
+            ? Executors.newFixedThreadPool(workers.length - 1, new WorkerThreadFactory())
+            : null;
+    LOGGER.i("Created inference pool with %d workers", workers.length);
+  }
+
+  public int getNumWorkers() {
+    return workers.length;
+  }
+
+  /**
+   * Classifies the given tiles like {@link TensorflowClassifier#recognizeTiles}, spreading them
+   * over the workers.
+   *
+   * @return false if inference failed for any share.
+   */
+  public boolean recognizeTiles(
+      final ByteBuffer tiles,
+      final int[] tileIndices,
+      final int numTiles,
+      final float[] confidences) {
+    final int numShares =
+        Math.max(1, Math.min(workers.length, numTiles / MIN_TILES_PER_WORKER));
+    if (numShares == 1) {
+      return classifier.recognizeTiles(tiles, tileIndices, numTiles, confidences);
+    }
+
+    // Hand out the shares, keeping the first one for this thread.
+    synchronized (pending) {
+      pending[0] = numShares - 1;
+    }
+    int start = 0;
+    for (int i = 0; i < numShares; ++i) {
+      final int end = numTiles * (i + 1) / numShares;
+      final Worker worker = workers[i];
+      worker.prepare(end - start, confidences.length);
+      System.arraycopy(tileIndices, start, worker.tileIndices, 0, end - start);
+      worker.tiles = tiles;
+      worker.success = false;
+      if (i > 0) {
+        executor.execute(worker);
+      }
+      start = end;
+    }
+    workers[0].success = classifier.recognizeTiles(
+        tiles, workers[0].tileIndices, workers[0].numTiles, workers[0].confidences);
+    workers[0].tiles = null;
+
+    // The workers must be done with their shares before they can be handed the next ones, so an
+    // interrupt only fails the call once they are.
+    boolean interrupted = false;
+    synchronized (pending) {
+      while (pending[0] > 0) {
+        try {
+          pending.wait();
+        } catch (final InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+
+    boolean success = true;
+    for (int i = 0; i < numShares; ++i) {
+      final Worker worker = workers[i];
+      success &= worker.success;
+      for (int j = 0; j < worker.numTiles; ++j) {
+        final int tile = worker.tileIndices[j];
+        confidences[tile] = worker.confidences[tile];
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Stops the worker threads.
+   */
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private int count = 0;
+
+    @Override
+    public synchronized Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, "InferenceWorker-" + ++count);
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
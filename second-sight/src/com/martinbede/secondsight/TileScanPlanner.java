@@ -0,0 +1,165 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+/**
+ * Orders the tiles of a frame by how likely they are to contain text and hands them out in
+ * batches, so that the scan can stop as soon as the decision is certain. Tiles that were hot in
+ * recent frames come first, hottest first, followed by the rest from the center of the frame
+ * outwards, which is where a user aiming the phone at a label will usually have put it.
+ *
+ * <p>Batches start small, so that a label in the usual spot is found after a single short run, and
+ * grow for the remaining tiles so that the batched classifier stays efficient. Not thread-safe;
+ * meant to be owned by the inference thread.
+ */
+public class TileScanPlanner {
+  // Tiles whose decayed confidence is at least this high are scanned before all others.
+  private static final float HOT_THRESHOLD = 0.3f;
+
+  // How much of a tile's confidence carries over to the next frame.
+  private static final float HEAT_DECAY = 0.7f;
+
+  private final int firstBatchSize;
+  private final int maxBatchSize;
+
+  private int cols = 0;
+  private int rows = 0;
+
+  // All tiles of the grid, nearest to the center first.
+  private int[] centerOrder;
+
+  // Decayed confidence of every tile over the recent frames.
+  private float[] heat;
+
+  // The scan order of the current frame, and the batch handed out last.
+  private int[] order;
+  private int[] batch;
+
+  private int numToSchedule = 0;
+  private int numScheduled = 0;
+  private int nextBatchSize = 0;
+
+  /**
+   * @param firstBatchSize The number of tiles in the first batch of a frame.
+   * @param maxBatchSize The number of tiles batches grow to.
+   */
+  public TileScanPlanner(final int firstBatchSize, final int maxBatchSize) {
+    this.firstBatchSize = firstBatchSize;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * Starts the scan of a frame with a grid of cols x rows tiles.
+   *
+   * @param confidences The confidences of the frame, indexed by tile. Only tiles marked
+   *     {@link TileFrame#NOT_EVALUATED} are scheduled; the others are already known.
+   */
+  public void begin(final int cols, final int rows, final float[] confidences) {
+    if (this.cols != cols || this.rows != rows) {
+      configure(cols, rows);
+    }
+
+    // Insertion sort, stable with respect to the center order, of the hot tiles to the front.
+    final int numTiles = cols * rows;
+    numToSchedule = 0;
+    for (int i = 0; i < numTiles; ++i) {
+      final int tile = centerOrder[i];
+      if (confidences[tile] != TileFrame.NOT_EVALUATED) {
+        continue;
+      }
+      final float priority = getPriority(tile);
+      int j = numToSchedule++;
+      while (j > 0 && getPriority(order[j - 1]) < priority) {
+        order[j] = order[j - 1];
+        --j;
+      }
+      order[j] = tile;
+    }
+
+    numScheduled = 0;
+    nextBatchSize = firstBatchSize;
+  }
+
+  /**
+   * Fills {@link #getBatch()} with the next tiles to classify.
+   *
+   * @return the number of tiles in the batch, or 0 once every tile has been scheduled.
+   */
+  public int nextBatch() {
+    final int size = Math.min(nextBatchSize, numToSchedule - numScheduled);
+    System.arraycopy(order, numScheduled, batch, 0, size);
+    numScheduled += size;
+    nextBatchSize = Math.min(nextBatchSize * 2, maxBatchSize);
+    return size;
+  }
+
+  public int[] getBatch() {
+    return batch;
+  }
+
+  /**
+   * Ends the scan of the current frame and folds its results into the tile history.
+   *
+   * @param confidences The confidences of the frame, indexed by tile.
+   */
+  public void end(final float[] confidences) {
+    final int numTiles = cols * rows;
+    for (int tile = 0; tile < numTiles; ++tile) {
+      heat[tile] = Math.max(heat[tile] * HEAT_DECAY, confidences[tile]);
+    }
+  }
+
+  /**
+   * Returns the number of tiles scheduled for classification in the current frame.
+   */
+  public int getNumEvaluated() {
+    return numScheduled;
+  }
+
+  private float getPriority(final int tile) {
+    return heat[tile] >= HOT_THRESHOLD ? heat[tile] : 0.0f;
+  }
+
+  private void configure(final int cols, final int rows) {
+    this.cols = cols;
+    this.rows = rows;
+
+    final int numTiles = cols * rows;
+    centerOrder = new int[numTiles];
+    heat = new float[numTiles];
+    order = new int[numTiles];
+    batch = new int[numTiles];
+
+    // Squared distance of every tile center from the frame center, in half tiles.
+    final int[] distance = new int[numTiles];
+    for (int row = 0; row < rows; ++row) {
+      for (int col = 0; col < cols; ++col) {
+        final int dx = 2 * col + 1 - cols;
+        final int dy = 2 * row + 1 - rows;
+        distance[row * cols + col] = dx * dx + dy * dy;
+      }
+    }
+
+    for (int i = 0; i < numTiles; ++i) {
+      int j = i;
+      while (j > 0 && distance[centerOrder[j - 1]] > distance[i]) {
+        centerOrder[j] = centerOrder[j - 1];
+        --j;
+      }
+      centerOrder[j] = i;
+    }
+  }
+}
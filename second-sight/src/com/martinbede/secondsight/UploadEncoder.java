@@ -0,0 +1,321 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.SystemClock;
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes image crops for upload within a byte budget. Crops are converted to grayscale, which is
+ * all the OCR needs, and scaled down and compressed harder when the predicted JPEG size exceeds
+ * the budget. The budget follows the bandwidth measured on earlier uploads, so that a slow
+ * uplink gets smaller images. Upload times are modelled as a fixed latency, for connection setup
+ * and server time, plus the transfer at that bandwidth, so that a long round trip on a fast link
+ * does not shrink the images: only the time left after the fixed latency is spent on bytes.
+ * Crops are never scaled below a minimum factor, to keep small text legible. The pixel buffer,
+ * the bitmap and the output buffer are reused from crop to crop.
+ *
+ * <p>{@link #encode} must only be called from one thread; {@link #getBudget} and
+ * {@link #onUploadFinished} may be called from any thread.
+ */
+public class UploadEncoder {
+  // Starting guess for the compressed size of a grayscale pixel at full quality, refined with
+  // every encode at that quality.
+  private static final float INITIAL_BYTES_PER_PIXEL = 0.25f;
+
+  // How much the size and upload time estimates move towards each new measurement.
+  private static final float ESTIMATE_WEIGHT = 0.3f;
+
+  // The bandwidth and the fixed latency can only be told apart once upload sizes vary by about
+  // this much. Until then all of the upload time is taken for transfer.
+  private static final float MIN_SIZE_SPREAD_BYTES = 2048;
+
+  // However long the fixed latency, the transfer is given at least this fraction of the target,
+  // as shrinking the images further would not make the upload meet it anyway.
+  private static final float MIN_TRANSFER_FRACTION = 0.5f;
+
+  private static final int QUALITY_STEP = 15;
+  private static final int MAX_ATTEMPTS = 3;
+
+  /**
+   * An encoded crop, ready to be put into a Vision request.
+   */
+  public static class EncodedImage {
+    /**
+     * The JPEG data, base64 encoded.
+     */
+    public final String content;
+
+    public final int encodedBytes;
+    public final int width;
+    public final int height;
+    public final int quality;
+    public final float scale;
+    public final long encodeMs;
+
+    EncodedImage(
+        final String content,
+        final int encodedBytes,
+        final int width,
+        final int height,
+        final int quality,
+        final float scale,
+        final long encodeMs) {
+      this.content = content;
+      this.encodedBytes = encodedBytes;
+      this.width = width;
+      this.height = height;
+      this.quality = quality;
+      this.scale = scale;
+      this.encodeMs = encodeMs;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%dx%d, %d bytes at quality %d, scale %.2f, encoded in %dms",
+          width, height, encodedBytes, quality, scale, encodeMs);
+    }
+  }
+
+  // Exposes its buffer, so that the output does not have to be copied before base64 encoding.
+  private static class OutputBuffer extends ByteArrayOutputStream {
+    OutputBuffer(final int size) {
+      super(size);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
+  private final int minBytes;
+  private final int maxBytes;
+  private final long targetUploadMs;
+  private final float minScale;
+  private final int minQuality;
+  private final int maxQuality;
+
+  private int[] pixels = new int[0];
+  // Reconfigured to the size of every attempt, and only reallocated when it has to grow.
+  private Bitmap bitmap = null;
+  private final OutputBuffer output;
+  private float bytesPerPixel = INITIAL_BYTES_PER_PIXEL;
+
+  // Exponentially weighted sums over the finished uploads, for a least squares fit of their time
+  // against their size: the total weight, and the sums of bytes, ms, bytes squared and bytes
+  // times ms. Guarded by this.
+  private double sumWeight = 0;
+  private double sumBytes = 0;
+  private double sumMs = 0;
+  private double sumBytesSquared = 0;
+  private double sumBytesMs = 0;
+
+  // The fitted transfer time per byte, or 0 until the first upload finished, and the fixed
+  // latency of an upload. Guarded by this.
+  private double msPerByte = 0;
+  private double fixedMs = 0;
+
+  /**
+   * @param minBytes The smallest budget, however slow uploads are.
+   * @param maxBytes The largest budget, however fast uploads are.
+   * @param targetUploadMs How long an upload should take at the measured throughput.
+   * @param minScale The smallest factor a crop may be scaled down by.
+   * @param minQuality The lowest JPEG quality to use.
+   * @param maxQuality The JPEG quality to use when the budget allows.
+   */
+  public UploadEncoder(
+      final int minBytes,
+      final int maxBytes,
+      final long targetUploadMs,
+      final float minScale,
+      final int minQuality,
+      final int maxQuality) {
+    this.minBytes = minBytes;
+    this.maxBytes = maxBytes;
+    this.targetUploadMs = targetUploadMs;
+    this.minScale = minScale;
+    this.minQuality = minQuality;
+    this.maxQuality = maxQuality;
+    output = new OutputBuffer(maxBytes);
+  }
+
+  /**
+   * Returns the current budget for a request, in bytes. Crops that are uploaded together share
+   * it.
+   */
+  public synchronized int getBudget() {
+    if (msPerByte <= 0) {
+      return maxBytes;
+    }
+    final double transferMs =
+        Math.max(targetUploadMs - fixedMs, targetUploadMs * MIN_TRANSFER_FRACTION);
+    return (int) Math.max(minBytes, Math.min(maxBytes, transferMs / msPerByte));
+  }
+
+  /**
+   * Returns the fitted fixed latency of an upload, in ms.
+   */
+  public synchronized long getFixedLatencyMs() {
+    return Math.round(fixedMs);
+  }
+
+  /**
+   * Encodes a crop of an ARGB_8888 image.
+   *
+   * @param source The image pixels.
+   * @param offset The index of the top left pixel of the crop.
+   * @param stride The row stride of the image, in pixels.
+   * @param budget The size to fit the crop into, in bytes, such as its share of
+   *     {@link #getBudget}.
+   */
+  public EncodedImage encode(
+      final int[] source,
+      final int offset,
+      final int stride,
+      final int width,
+      final int height,
+      final int budget) {
+    final long start = SystemClock.uptimeMillis();
+
+    // Start at the scale that should just fit the budget at full quality.
+    float scale = 1.0f;
+    final float predicted = width * height * bytesPerPixel;
+    if (predicted > budget) {
+      scale = Math.max(minScale, (float) Math.sqrt(budget / predicted));
+    }
+    int quality = maxQuality;
+
+    int scaledWidth = 0;
+    int scaledHeight = 0;
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; ++attempt) {
+      scaledWidth = Math.max(1, Math.round(width * scale));
+      scaledHeight = Math.max(1, Math.round(height * scale));
+      toGrayscale(source, offset, stride, width, height, scaledWidth, scaledHeight);
+
+      prepareBitmap(scaledWidth, scaledHeight);
+      bitmap.setPixels(pixels, 0, scaledWidth, 0, 0, scaledWidth, scaledHeight);
+      output.reset();
+      bitmap.compress(Bitmap.CompressFormat.JPEG, quality, output);
+
+      // Attempts at a lower quality would make the next crop start too small.
+      if (quality == maxQuality) {
+        bytesPerPixel += ESTIMATE_WEIGHT
+            * ((float) output.size() / (scaledWidth * scaledHeight) - bytesPerPixel);
+      }
+      if (output.size() <= budget || (quality <= minQuality && scale <= minScale)) {
+        break;
+      }
+
+      // Over budget: trade a bit of both resolution and quality.
+      scale = Math.max(minScale, scale * (float) Math.sqrt((float) budget / output.size()));
+      quality = Math.max(minQuality, quality - QUALITY_STEP);
+    }
+
+    final String content =
+        Base64.encodeToString(output.getBuffer(), 0, output.size(), Base64.NO_WRAP);
+    return new EncodedImage(
+        content, output.size(), scaledWidth, scaledHeight, quality, scale,
+        SystemClock.uptimeMillis() - start);
+  }
+
+  /**
+   * Feeds back how long an upload took, from sending the request to receiving the response,
+   * without any time spent waiting to be sent.
+   */
+  public synchronized void onUploadFinished(final int bytes, final long elapsedMs) {
+    if (bytes <= 0 || elapsedMs <= 0) {
+      return;
+    }
+    final double decay = 1.0 - ESTIMATE_WEIGHT;
+    sumWeight = sumWeight * decay + 1.0;
+    sumBytes = sumBytes * decay + bytes;
+    sumMs = sumMs * decay + elapsedMs;
+    sumBytesSquared = sumBytesSquared * decay + (double) bytes * bytes;
+    sumBytesMs = sumBytesMs * decay + (double) bytes * elapsedMs;
+
+    final double meanBytes = sumBytes / sumWeight;
+    final double meanMs = sumMs / sumWeight;
+    final double varianceBytes = sumBytesSquared / sumWeight - meanBytes * meanBytes;
+    final double covariance = sumBytesMs / sumWeight - meanBytes * meanMs;
+    if (varianceBytes > MIN_SIZE_SPREAD_BYTES * MIN_SIZE_SPREAD_BYTES && covariance > 0) {
+      msPerByte = covariance / varianceBytes;
+    } else if (msPerByte <= 0) {
+      msPerByte = meanMs / meanBytes;
+    }
+    fixedMs = Math.max(0, meanMs - msPerByte * meanBytes);
+  }
+
+  // Makes the bitmap the given size, reusing its memory if it is large enough.
+  private void prepareBitmap(final int width, final int height) {
+    if (bitmap != null && bitmap.getAllocationByteCount() >= width * height * 4) {
+      bitmap.reconfigure(width, height, Config.ARGB_8888);
+      return;
+    }
+    if (bitmap != null) {
+      bitmap.recycle();
+    }
+    bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+  }
+
+  // Converts the crop to grayscale while scaling it bilinearly to the given size, into pixels.
+  private void toGrayscale(
+      final int[] source,
+      final int offset,
+      final int stride,
+      final int width,
+      final int height,
+      final int scaledWidth,
+      final int scaledHeight) {
+    if (pixels.length < scaledWidth * scaledHeight) {
+      pixels = new int[scaledWidth * scaledHeight];
+    }
+
+    // 16.16 fixed point steps through the source.
+    final int stepX = (int) (((long) width << 16) / scaledWidth);
+    final int stepY = (int) (((long) height << 16) / scaledHeight);
+    int out = 0;
+    for (int y = 0; y < scaledHeight; ++y) {
+      final int posY = Math.max(0, y * stepY + stepY / 2 - 32768);
+      final int y0 = Math.min(height - 1, posY >> 16);
+      final int y1 = Math.min(height - 1, y0 + 1);
+      final int wy = (posY >> 8) & 0xff;
+      for (int x = 0; x < scaledWidth; ++x) {
+        final int posX = Math.max(0, x * stepX + stepX / 2 - 32768);
+        final int x0 = Math.min(width - 1, posX >> 16);
+        final int x1 = Math.min(width - 1, x0 + 1);
+        final int wx = (posX >> 8) & 0xff;
+
+        final int top =
+            luma(source[offset + y0 * stride + x0]) * (256 - wx)
+                + luma(source[offset + y0 * stride + x1]) * wx;
+        final int bottom =
+            luma(source[offset + y1 * stride + x0]) * (256 - wx)
+                + luma(source[offset + y1 * stride + x1]) * wx;
+        final int value = (top * (256 - wy) + bottom * wy + 32768) >> 16;
+        pixels[out++] = 0xff000000 | (value << 16) | (value << 8) | value;
+      }
+    }
+  }
+
+  private static int luma(final int argb) {
+    return (((argb >> 16) & 0xff) * 77 + ((argb >> 8) & 0xff) * 150 + (argb & 0xff) * 29) >> 8;
+  }
+}
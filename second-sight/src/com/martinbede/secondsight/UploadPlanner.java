@@ -0,0 +1,122 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.martinbede.secondsight.Classifier.Recognition;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which parts of a frame to send to Cloud Vision. Every text region is padded, since the
+ * detector works on whole tiles and characters often straddle a tile edge, and clamped to the
+ * frame. Crops that overlap once padded are merged, so that a line of text is not cut in two.
+ * Only the crops of the best regions are kept.
+ *
+ * <p>Not thread-safe; meant to be owned by the inference thread.
+ */
+public class UploadPlanner {
+  private final float padding;
+  private final int maxCrops;
+
+  private final ArrayList<Rect> crops = new ArrayList<Rect>();
+
+  /**
+   * @param padding How much to grow every region on each side, as a fraction of a tile.
+   * @param maxCrops The largest number of crops to upload for one frame.
+   */
+  public UploadPlanner(final float padding, final int maxCrops) {
+    this.padding = padding;
+    this.maxCrops = maxCrops;
+  }
+
+  /**
+   * Plans the crops for the given regions of a frame.
+   *
+   * @param regions Text regions in frame pixels, best first, as found by {@link TextRegionFinder}.
+   * @return The crops in frame pixels, best first. The list is reused by the next call.
+   */
+  public List<Rect> plan(final List<Recognition> regions, final TileFrame frame) {
+    crops.clear();
+
+    final float padX = padding * frame.width / frame.cols;
+    final float padY = padding * frame.height / frame.rows;
+    for (final Recognition region : regions) {
+      final RectF location = region.getLocation();
+      if (location == null) {
+        continue;
+      }
+
+      final Rect crop =
+          new Rect(
+              Math.max(0, (int) Math.floor(location.left - padX)),
+              Math.max(0, (int) Math.floor(location.top - padY)),
+              Math.min(frame.width, (int) Math.ceil(location.right + padX)),
+              Math.min(frame.height, (int) Math.ceil(location.bottom + padY)));
+      if (!mergeInto(crop) && crops.size() < maxCrops) {
+        crops.add(crop);
+      }
+    }
+    return crops;
+  }
+
+  // Merges the crop into the first crop it overlaps, then keeps merging until no two crops
+  // overlap. Returns false if the crop overlaps none of them.
+  private boolean mergeInto(final Rect crop) {
+    int merged = -1;
+    for (int i = 0; i < crops.size() && merged < 0; ++i) {
+      if (overlap(crops.get(i), crop)) {
+        union(crops.get(i), crop);
+        merged = i;
+      }
+    }
+    if (merged < 0) {
+      return false;
+    }
+
+    // A grown crop may now overlap crops it did not overlap before.
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      final Rect grown = crops.get(merged);
+      for (int i = crops.size() - 1; i >= 0; --i) {
+        if (i != merged && overlap(grown, crops.get(i))) {
+          union(grown, crops.remove(i));
+          if (i < merged) {
+            --merged;
+          }
+          changed = true;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static boolean overlap(final Rect a, final Rect b) {
+    return a.left < b.right && b.left < a.right && a.top < b.bottom && b.top < a.bottom;
+  }
+
+  private static void union(final Rect target, final Rect other) {
+    target.set(
+        Math.min(target.left, other.left),
+        Math.min(target.top, other.top),
+        Math.max(target.right, other.right),
+        Math.max(target.bottom, other.bottom));
+  }
+}
@@ -0,0 +1,163 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import android.os.SystemClock;
+
+import com.martinbede.secondsight.env.Logger;
+
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.vision.v1.Vision;
+import com.google.api.services.vision.v1.VisionRequestInitializer;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Cloud Vision client that lives as long as the activity. All requests go through one HTTP
+ * transport, whose keep-alive connections are pooled, so only the first request of a session
+ * pays for the TCP and TLS handshakes. {@link #warmUp} opens that connection ahead of time when
+ * an upload is likely to follow soon. Every request has connect and read timeouts, as a blocking
+ * read cannot be interrupted.
+ *
+ * <p>The root URL can point to a local stand-in server for testing without the real service.
+ * Thread-safe.
+ */
+public class VisionClient {
+  private static final Logger LOGGER = new Logger();
+
+  public static final String DEFAULT_ROOT_URL = "https://vision.googleapis.com/";
+
+  // Idle keep-alive connections are dropped after a while, so a connection used more recently
+  // than this is assumed to be still open.
+  private static final long WARM_UP_INTERVAL_MS = 20000;
+
+  private static final int CONNECT_TIMEOUT_MS = 5000;
+  private static final int READ_TIMEOUT_MS = 10000;
+
+  private final String rootUrl;
+  private final HttpTransport transport;
+  private final HttpRequestInitializer timeouts;
+  private final Vision vision;
+  private final ExecutorService warmUpExecutor;
+
+  // When a connection was last opened or used, or 0 if never.
+  private final AtomicLong lastConnectionMs = new AtomicLong(0);
+
+  /**
+   * @param apiKey The Cloud Vision API key.
+   * @param rootUrl The root URL of the service, ending with a slash.
+   */
+  public VisionClient(final String apiKey, final String rootUrl) {
+    this.rootUrl = rootUrl;
+    transport = AndroidHttp.newCompatibleTransport();
+    timeouts =
+        new HttpRequestInitializer() {
+          @Override
+          public void initialize(final HttpRequest request) {
+            request.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            request.setReadTimeout(READ_TIMEOUT_MS);
+          }
+        };
+    vision =
+        new Vision.Builder(transport, GsonFactory.getDefaultInstance(), timeouts)
+            .setRootUrl(rootUrl)
+            .setVisionRequestInitializer(new VisionRequestInitializer(apiKey))
+            .build();
+    warmUpExecutor =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "VisionWarmUp");
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+  }
+
+  /**
+   * Sends an annotate request and waits for the response.
+   */
+  public BatchAnnotateImagesResponse annotate(final BatchAnnotateImagesRequest request)
+      throws IOException {
+    lastConnectionMs.set(SystemClock.uptimeMillis());
+    final Vision.Images.Annotate annotateRequest = vision.images().annotate(request);
+    // Due to a bug: requests to Vision API containing large images fail when GZipped.
+    annotateRequest.setDisableGZipContent(true);
+    return annotateRequest.execute();
+  }
+
+  /**
+   * Opens a connection to the service in the background, unless one was used recently, so that
+   * the next request finds it in the pool. Returns immediately.
+   */
+  public void warmUp() {
+    final long now = SystemClock.uptimeMillis();
+    final long last = lastConnectionMs.get();
+    if ((last != 0 && now - last < WARM_UP_INTERVAL_MS)
+        || !lastConnectionMs.compareAndSet(last, now)) {
+      return;
+    }
+
+    try {
+      warmUpExecutor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              final long start = SystemClock.uptimeMillis();
+              try {
+                final HttpRequest request =
+                    transport.createRequestFactory(timeouts)
+                        .buildHeadRequest(new GenericUrl(rootUrl));
+                request.setThrowExceptionOnExecuteError(false);
+                // Reading the response to the end hands the connection back to the pool.
+                request.execute().ignore();
+                LOGGER.v("Warmed up connection in %dms", SystemClock.uptimeMillis() - start);
+              } catch (final IOException e) {
+                LOGGER.d("Could not warm up connection: %s", e.getMessage());
+                lastConnectionMs.set(0);
+              }
+            }
+          });
+    } catch (final RejectedExecutionException e) {
+      // Closed already.
+    }
+  }
+
+  /**
+   * Stops warming up and releases the pooled connections.
+   */
+  public void close() {
+    warmUpExecutor.shutdownNow();
+    try {
+      transport.shutdown();
+    } catch (final IOException e) {
+      LOGGER.w("Could not shut down transport: %s", e.getMessage());
+    }
+  }
+}
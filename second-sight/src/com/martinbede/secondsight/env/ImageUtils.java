@@ -20,6 +20,7 @@ import android.os.Environment;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Utility class for manipulating images.
@@ -151,4 +152,118 @@ public class ImageUtils {
    */
   public static native void convertRGB565ToYUV420SP(
       byte[] input, byte[] output, int width, int height);
+
+  /**
+   * Converts YUV420 planar data held in direct ByteBuffers, such as the planes
+   * of an {@link android.media.Image}, to ARGB 8888 data. The planes are read
+   * in place, so no pixel data is copied into the Java heap. The input and
+   * output must already be allocated and non-null. For efficiency, no error
+   * checking is performed.
+   *
+   * @param y The direct buffer of the Y plane.
+   * @param u The direct buffer of the U plane.
+   * @param v The direct buffer of the V plane.
+   * @param output A pre-allocated array for the ARGB 8:8:8:8 output data.
+   * @param width The width of the input image.
+   * @param height The height of the input image.
+   * @param yRowStride The row stride of the Y plane.
+   * @param uvRowStride The row stride of the U and V planes.
+   * @param uvPixelStride The pixel stride of the U and V planes.
+   */
+  public static native void convertYUV420PlanesToARGB8888(
+      ByteBuffer y,
+      ByteBuffer u,
+      ByteBuffer v,
+      int[] output,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride);
+
+  /**
+   * Cuts the luminance plane of a YUV 4:2:0 image into square grayscale tiles.
+   * The image is bilinearly resampled onto a grid of cols x rows tiles and the
+   * tiles are written out one after the other in row-major order. The chroma
+   * planes are never read. Both buffers must be direct and already allocated.
+   * For efficiency, no error checking is performed.
+   *
+   * @param y The direct buffer of the Y plane.
+   * @param output A direct buffer of cols * rows * tileSize * tileSize bytes.
+   * @param width The width of the input image.
+   * @param height The height of the input image.
+   * @param yRowStride The row stride of the Y plane.
+   * @param yPixelStride The pixel stride of the Y plane.
+   * @param cols The number of tiles in each row of the grid.
+   * @param rows The number of tiles in each column of the grid.
+   * @param tileSize The width and height of a single tile.
+   */
+  public static native void extractLumaTiles(
+      ByteBuffer y,
+      ByteBuffer output,
+      int width,
+      int height,
+      int yRowStride,
+      int yPixelStride,
+      int cols,
+      int rows,
+      int tileSize);
+
+  /**
+   * The same as {@link #extractLumaTiles}, but samples the red channel of
+   * packed ARGB 8888 input.
+   *
+   * @param input An array of input pixels in ARGB8888 format.
+   * @param output A direct buffer of cols * rows * tileSize * tileSize bytes.
+   * @param width The width of the input image.
+   * @param height The height of the input image.
+   * @param cols The number of tiles in each row of the grid.
+   * @param rows The number of tiles in each column of the grid.
+   * @param tileSize The width and height of a single tile.
+   */
+  public static native void extractARGB8888Tiles(
+      int[] input, ByteBuffer output, int width, int height, int cols, int rows, int tileSize);
+
+  /**
+   * Shrinks every tile of a grid written by {@link #extractLumaTiles} to a
+   * small thumbnail by block averaging. Thumbnails are cheap to compare across
+   * frames. tileSize must be a multiple of thumbnailSize.
+   *
+   * @param tiles The direct buffer holding the tile grid.
+   * @param numTiles The number of tiles in the grid.
+   * @param tileSize The width and height of a single tile.
+   * @param output A pre-allocated array of numTiles * thumbnailSize * thumbnailSize bytes.
+   * @param thumbnailSize The width and height of a single thumbnail.
+   */
+  public static native void downsampleTiles(
+      ByteBuffer tiles, int numTiles, int tileSize, byte[] output, int thumbnailSize);
+
+  /**
+   * Reassembles a tile grid written by {@link #extractLumaTiles} into a
+   * grayscale ARGB 8888 image of (cols * tileSize) x (rows * tileSize) pixels.
+   *
+   * @param tiles The direct buffer holding the tile grid.
+   * @param output A pre-allocated array for the ARGB 8:8:8:8 output data.
+   * @param cols The number of tiles in each row of the grid.
+   * @param rows The number of tiles in each column of the grid.
+   * @param tileSize The width and height of a single tile.
+   */
+  public static native void convertLumaTilesToARGB8888(
+      ByteBuffer tiles, int[] output, int cols, int rows, int tileSize);
+
+  /**
+   * Measures how sharp an image is, as the variance of the Laplacian of its
+   * luminance plane sampled every step pixels. Lower values mean a blurrier
+   * image. The buffer must be direct.
+   *
+   * @param y The direct buffer of the Y plane.
+   * @param width The width of the input image.
+   * @param height The height of the input image.
+   * @param yRowStride The row stride of the Y plane.
+   * @param yPixelStride The pixel stride of the Y plane.
+   * @param step The subsampling factor in both directions.
+   * @return The focus measure of the image.
+   */
+  public static native float computeFocusMeasure(
+      ByteBuffer y, int width, int height, int yRowStride, int yPixelStride, int step);
 }
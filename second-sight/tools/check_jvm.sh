@@ -0,0 +1,38 @@
+#!/bin/sh
+# Copyright 2015 Google Inc. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+# ==============================================================================
+#
+# Runs the checks under jvm/ that need nothing but the app sources on the
+# desktop JVM. Android classes they touch are replaced by the stand-ins under
+# jvm/android. VisionClientCheck needs the client jars and is run by
+# check_vision_client.sh instead.
+#
+#   second-sight/tools/check_jvm.sh
+
+set -e
+
+TOOLS_DIR=$(cd "$(dirname "$0")" && pwd)
+CHECK_DIR="$TOOLS_DIR/jvm/com/martinbede/secondsight"
+OUT_DIR=$(mktemp -d)
+trap 'rm -rf "$OUT_DIR"' EXIT
+
+CHECKS=$(cd "$CHECK_DIR" && ls *Check.java | grep -v '^VisionClientCheck.java$')
+
+# The app classes and the Android stand-ins are compiled as the checks need them.
+(cd "$CHECK_DIR" && javac -d "$OUT_DIR" -sourcepath "$TOOLS_DIR/jvm:$TOOLS_DIR/../src" $CHECKS)
+
+for check in $CHECKS; do
+  java -cp "$OUT_DIR" "com.martinbede.secondsight.${check%.java}"
+done
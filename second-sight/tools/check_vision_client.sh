@@ -0,0 +1,70 @@
+#!/bin/sh
+# Copyright 2015 Google Inc. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+# ==============================================================================
+#
+# Runs VisionClient on the desktop JVM against ocr_standin.py and checks that
+# a batch annotate request round-trips over the connection warmUp() opened.
+#
+# The client libraries are the jars the app links against: google-api-client,
+# google-http-client, google-http-client-android, google-http-client-gson,
+# gson and google-api-services-vision. Pass them as a classpath:
+#
+#   VISION_CLASSPATH=a.jar:b.jar:... second-sight/tools/check_vision_client.sh
+
+set -e
+
+if [ -z "$VISION_CLASSPATH" ]; then
+  echo "Set VISION_CLASSPATH to the Vision client jars." >&2
+  exit 2
+fi
+
+TOOLS_DIR=$(cd "$(dirname "$0")" && pwd)
+TEXT="Stand-in text"
+OUT_DIR=$(mktemp -d)
+SERVER_PID=
+
+cleanup() {
+  if [ -n "$SERVER_PID" ]; then
+    kill "$SERVER_PID" 2>/dev/null || true
+  fi
+  rm -rf "$OUT_DIR"
+}
+trap cleanup EXIT
+
+# The app classes and the Android stand-ins are compiled as the check needs them.
+# Build is only used by AndroidHttp, so it is named explicitly.
+javac -d "$OUT_DIR/classes" -cp "$VISION_CLASSPATH" \
+    -sourcepath "$TOOLS_DIR/jvm:$TOOLS_DIR/../src" \
+    "$TOOLS_DIR/jvm/com/martinbede/secondsight/VisionClientCheck.java" \
+    "$TOOLS_DIR/jvm/android/os/Build.java"
+
+# Port 0 lets the system pick a free port, which the stand-in prints.
+"${PYTHON:-python}" "$TOOLS_DIR/ocr_standin.py" --port 0 --text "$TEXT" \
+    > "$OUT_DIR/standin.log" 2>&1 &
+SERVER_PID=$!
+PORT=
+for _ in $(seq 50); do
+  PORT=$(sed -n 's/^Serving OCR stand-in on port \([0-9]*\)$/\1/p' "$OUT_DIR/standin.log")
+  [ -n "$PORT" ] && break
+  sleep 0.1
+done
+if [ -z "$PORT" ]; then
+  echo "The stand-in did not start:" >&2
+  cat "$OUT_DIR/standin.log" >&2
+  exit 1
+fi
+
+java -cp "$OUT_DIR/classes:$VISION_CLASSPATH" \
+    com.martinbede.secondsight.VisionClientCheck "http://localhost:$PORT/" "$TEXT"
@@ -0,0 +1,66 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package android.graphics;
+
+import java.io.OutputStream;
+
+/**
+ * Stands in for the Android class so that classes that encode uploads compile on a desktop JVM.
+ * The checks do not encode images, so nothing here works.
+ */
+public final class Bitmap {
+  public enum Config {
+    ARGB_8888
+  }
+
+  public enum CompressFormat {
+    JPEG
+  }
+
+  private Bitmap() {}
+
+  public static Bitmap createBitmap(final int width, final int height, final Config config) {
+    throw new UnsupportedOperationException();
+  }
+
+  public int getAllocationByteCount() {
+    throw new UnsupportedOperationException();
+  }
+
+  public void reconfigure(final int width, final int height, final Config config) {
+    throw new UnsupportedOperationException();
+  }
+
+  public void setPixels(
+      final int[] pixels,
+      final int offset,
+      final int stride,
+      final int x,
+      final int y,
+      final int width,
+      final int height) {
+    throw new UnsupportedOperationException();
+  }
+
+  public boolean compress(
+      final CompressFormat format, final int quality, final OutputStream stream) {
+    throw new UnsupportedOperationException();
+  }
+
+  public void recycle() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,31 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package android.util;
+
+/**
+ * Stands in for the Android class so that classes that encode uploads compile on a desktop JVM.
+ * The checks do not encode images, so nothing here works.
+ */
+public final class Base64 {
+  public static final int NO_WRAP = 2;
+
+  private Base64() {}
+
+  public static String encodeToString(
+      final byte[] input, final int offset, final int len, final int flags) {
+    throw new UnsupportedOperationException();
+  }
+}
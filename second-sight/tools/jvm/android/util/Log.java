@@ -0,0 +1,82 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package android.util;
+
+/**
+ * Stands in for the Android class when VisionClient runs on a desktop JVM. Prints to stderr.
+ */
+public final class Log {
+  public static final int VERBOSE = 2;
+  public static final int DEBUG = 3;
+  public static final int INFO = 4;
+  public static final int WARN = 5;
+  public static final int ERROR = 6;
+
+  private Log() {}
+
+  public static boolean isLoggable(final String tag, final int level) {
+    return level >= DEBUG;
+  }
+
+  public static int v(final String tag, final String msg) {
+    return println("V", tag, msg, null);
+  }
+
+  public static int v(final String tag, final String msg, final Throwable tr) {
+    return println("V", tag, msg, tr);
+  }
+
+  public static int d(final String tag, final String msg) {
+    return println("D", tag, msg, null);
+  }
+
+  public static int d(final String tag, final String msg, final Throwable tr) {
+    return println("D", tag, msg, tr);
+  }
+
+  public static int i(final String tag, final String msg) {
+    return println("I", tag, msg, null);
+  }
+
+  public static int i(final String tag, final String msg, final Throwable tr) {
+    return println("I", tag, msg, tr);
+  }
+
+  public static int w(final String tag, final String msg) {
+    return println("W", tag, msg, null);
+  }
+
+  public static int w(final String tag, final String msg, final Throwable tr) {
+    return println("W", tag, msg, tr);
+  }
+
+  public static int e(final String tag, final String msg) {
+    return println("E", tag, msg, null);
+  }
+
+  public static int e(final String tag, final String msg, final Throwable tr) {
+    return println("E", tag, msg, tr);
+  }
+
+  private static int println(
+      final String level, final String tag, final String msg, final Throwable tr) {
+    System.err.println(level + "/" + tag + ": " + msg);
+    if (tr != null) {
+      tr.printStackTrace();
+    }
+    return 0;
+  }
+}
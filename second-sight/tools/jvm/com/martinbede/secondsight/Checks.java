@@ -0,0 +1,35 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+/**
+ * Assertions for the checks under tools/jvm. A failed check ends the process with status 1, so
+ * that the scripts running them fail.
+ */
+public final class Checks {
+  private Checks() {}
+
+  public static void check(final boolean condition, final String message) {
+    if (!condition) {
+      fail(message);
+    }
+  }
+
+  public static void fail(final String message) {
+    System.err.println("FAILED: " + message);
+    System.exit(1);
+  }
+}
@@ -0,0 +1,68 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import static com.martinbede.secondsight.Checks.check;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link OcrCache} only answers look-alike images while the camera jitters over a
+ * label, answers the very same image for as long as results are kept, and that its
+ * {@link OcrCache.Hasher} gives the same results when its buffer is reused.
+ */
+public class OcrCacheCheck {
+  private static final int MAX_DISTANCE = 6;
+  private static final long JITTER_MS = 2000;
+  private static final long TTL_MS = 300000;
+
+  public static void main(final String[] args) {
+    final long hash = 0x0123456789abcdefL;
+    final long nearHash = hash ^ 0x7L;
+    final long fingerprint = 42;
+    final long otherFingerprint = 43;
+
+    final OcrCache cache = new OcrCache(8, MAX_DISTANCE, JITTER_MS, TTL_MS);
+    cache.put(hash, fingerprint, "Organic bananas 1.99", 0);
+
+    check("Organic bananas 1.99".equals(cache.lookup(nearHash, otherFingerprint, JITTER_MS)),
+          "A look-alike image should be answered while the camera jitters");
+    check(cache.lookup(nearHash, otherFingerprint, JITTER_MS + 1) == null,
+          "A look-alike image, such as another tag of the same layout, should not be answered "
+              + "after the jitter time");
+    check("Organic bananas 1.99".equals(cache.lookup(~hash, fingerprint, TTL_MS)),
+          "The same image should be answered for as long as results are kept");
+    check(cache.lookup(hash, fingerprint, TTL_MS + 1) == null, "The result should expire");
+
+    // Hashing into the reused buffer gives the same results in any order.
+    final int width = 120;
+    final int height = 40;
+    final int[] pixels = new int[width * height];
+    final Random random = new Random(1);
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = 0xff000000 | (random.nextInt(256) << 8);
+    }
+    final OcrCache.Hasher hasher = new OcrCache.Hasher();
+    final long firstHash = hasher.hash(pixels, 0, width, width, height);
+    final long firstFingerprint = hasher.fingerprint(pixels, 0, width, width, height);
+    check(hasher.hash(pixels, 0, width, width, height) == firstHash,
+          "The hash should not depend on what was hashed before");
+    check(new OcrCache.Hasher().fingerprint(pixels, 0, width, width, height) == firstFingerprint,
+          "The fingerprint should not depend on what was hashed before");
+
+    System.out.println("OcrCache check passed");
+  }
+}
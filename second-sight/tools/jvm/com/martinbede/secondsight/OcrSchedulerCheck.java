@@ -0,0 +1,144 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import static com.martinbede.secondsight.Checks.check;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that {@link OcrScheduler} keeps the slot of a cancelled request until the engine really
+ * returns, as a blocking network read ignores interrupts, so that no more requests than allowed
+ * ever reach the engine at once.
+ */
+public class OcrSchedulerCheck {
+  private static final int MAX_IN_FLIGHT = 2;
+  private static final long WAIT_MS = 5000;
+
+  // Blocks every request until it is let through, ignoring interrupts like a socket read.
+  private static class BlockingEngine implements OcrEngine {
+    final Semaphore gate = new Semaphore(0);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public String getName() {
+      return "blocking";
+    }
+
+    @Override
+    public List<String> recognize(final List<UploadEncoder.EncodedImage> images)
+        throws IOException {
+      calls.incrementAndGet();
+      final int now = running.incrementAndGet();
+      synchronized (maxRunning) {
+        maxRunning.set(Math.max(maxRunning.get(), now));
+      }
+      gate.acquireUninterruptibly();
+      running.decrementAndGet();
+      return Collections.singletonList("text");
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  public static void main(final String[] args) throws InterruptedException {
+    final BlockingEngine engine = new BlockingEngine();
+    final OcrScheduler scheduler = new OcrScheduler(engine, MAX_IN_FLIGHT, 6, 60000);
+    final AtomicInteger read = new AtomicInteger();
+    final OcrScheduler.Callback callback =
+        new OcrScheduler.Callback() {
+          @Override
+          public void onTextRead(
+              final List<UploadEncoder.EncodedImage> images,
+              final List<String> texts,
+              final long latencyMs) {
+            read.incrementAndGet();
+          }
+
+          @Override
+          public void onFailed(
+              final List<UploadEncoder.EncodedImage> images, final IOException e) {}
+        };
+
+    // Two requests reach the engine and are then cancelled, but keep blocking.
+    submit(scheduler, callback, MAX_IN_FLIGHT);
+    waitFor(engine.calls, MAX_IN_FLIGHT);
+    scheduler.cancelAll();
+    check(scheduler.getInFlight() == 0, "Cancelled requests should not be in flight");
+    check(scheduler.getRunning() == MAX_IN_FLIGHT,
+          "Cancelled requests should keep their slots, got " + scheduler.getRunning());
+
+    // Newer requests wait for the slots instead of running alongside.
+    submit(scheduler, callback, MAX_IN_FLIGHT);
+    Thread.sleep(200);
+    check(engine.calls.get() == MAX_IN_FLIGHT,
+          "New requests should wait for the cancelled ones, got " + engine.calls.get() + " calls");
+    check(scheduler.getQueueDepth() == MAX_IN_FLIGHT, "New requests should be queued");
+
+    // Once the cancelled requests return, the new ones run, and only they are reported.
+    engine.gate.release(MAX_IN_FLIGHT);
+    waitFor(engine.calls, 2 * MAX_IN_FLIGHT);
+    engine.gate.release(MAX_IN_FLIGHT);
+    waitFor(read, MAX_IN_FLIGHT);
+    Thread.sleep(200);
+    check(read.get() == MAX_IN_FLIGHT,
+          "Only the new requests should be reported, got " + read.get());
+    check(engine.maxRunning.get() <= MAX_IN_FLIGHT,
+          "At most " + MAX_IN_FLIGHT + " requests should reach the engine at once, got "
+              + engine.maxRunning.get());
+    check(scheduler.getRunning() == 0, "All slots should be free");
+    check(countWorkers() <= MAX_IN_FLIGHT,
+          "At most " + MAX_IN_FLIGHT + " worker threads should exist, got " + countWorkers());
+
+    scheduler.close();
+    System.out.println("OcrScheduler check passed");
+  }
+
+  private static void submit(
+      final OcrScheduler scheduler, final OcrScheduler.Callback callback, final int count) {
+    for (int i = 0; i < count; ++i) {
+      scheduler.submit(
+          Collections.singletonList(new UploadEncoder.EncodedImage("", 0, 1, 1, 85, 1.0f, 0)),
+          callback);
+    }
+  }
+
+  private static void waitFor(final AtomicInteger counter, final int value)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + WAIT_MS;
+    while (counter.get() < value && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    check(counter.get() >= value, "Timed out waiting for " + value + ", got " + counter.get());
+  }
+
+  private static int countWorkers() {
+    int workers = 0;
+    for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("OcrWorker")) {
+        ++workers;
+      }
+    }
+    return workers;
+  }
+}
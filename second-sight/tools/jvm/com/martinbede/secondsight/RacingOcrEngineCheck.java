@@ -0,0 +1,120 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import static com.martinbede.secondsight.Checks.check;
+import static com.martinbede.secondsight.Checks.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that {@link RacingOcrEngine} ranks an engine that failed behind the others only for a
+ * while, and that the engine gets its rank back once it answers again.
+ */
+public class RacingOcrEngineCheck {
+  private static final long FAILURE_LATENCY_MS = 8000;
+  private static final long PENALTY_MS = 300;
+
+  private static class FakeEngine implements OcrEngine {
+    final String name;
+    final long latencyMs;
+    volatile boolean failing = false;
+    volatile int calls = 0;
+
+    FakeEngine(final String name, final long latencyMs) {
+      this.name = name;
+      this.latencyMs = latencyMs;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public List<String> recognize(final List<UploadEncoder.EncodedImage> images)
+        throws IOException {
+      ++calls;
+      try {
+        Thread.sleep(latencyMs);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      }
+      if (failing) {
+        throw new IOException(name + " is down");
+      }
+      return Collections.singletonList(name);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  public static void main(final String[] args) throws InterruptedException {
+    final FakeEngine fast = new FakeEngine("fast", 5);
+    final FakeEngine slow = new FakeEngine("slow", 50);
+    final List<OcrEngine> engines = new ArrayList<OcrEngine>();
+    engines.add(fast);
+    engines.add(slow);
+    // One engine per request, so that the ranking decides which one runs.
+    final RacingOcrEngine race = new RacingOcrEngine(engines, 1, FAILURE_LATENCY_MS, PENALTY_MS);
+
+    // Both unmeasured, so the first one runs, and fails.
+    fast.failing = true;
+    try {
+      race.recognize(images());
+      fail("The failure should be passed on");
+    } catch (final IOException e) {
+      // Expected.
+    }
+    check(fast.calls == 1, "The first engine should have run");
+
+    // While penalized, the failed engine ranks behind the slow one.
+    fast.failing = false;
+    check("slow".equals(read(race)), "The slow engine should run while the other is penalized");
+    check("slow".equals(read(race)), "The slow engine should keep running during the penalty");
+    check(fast.calls == 1, "The failed engine should not run during the penalty");
+
+    // After the penalty, its measured latency counts again; it answers and stays ahead.
+    Thread.sleep(PENALTY_MS + 50);
+    check("fast".equals(read(race)), "The failed engine should be tried after the penalty");
+    for (int i = 0; i < 3; ++i) {
+      check("fast".equals(read(race)),
+            "The engine should get its rank back once it answers again");
+    }
+    check(slow.calls == 2, "The slow engine should not run once the fast one recovered");
+
+    race.close();
+    System.out.println("RacingOcrEngine check passed");
+  }
+
+  private static String read(final RacingOcrEngine race) {
+    try {
+      return race.recognize(images()).get(0);
+    } catch (final IOException e) {
+      fail("Reading should succeed: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static List<UploadEncoder.EncodedImage> images() {
+    return Collections.singletonList(new UploadEncoder.EncodedImage("", 0, 1, 1, 85, 1.0f, 0));
+  }
+}
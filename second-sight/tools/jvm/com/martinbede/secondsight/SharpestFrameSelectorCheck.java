@@ -0,0 +1,68 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import static com.martinbede.secondsight.Checks.check;
+
+/**
+ * Checks that {@link SharpestFrameSelector} never picks a frame the classifier skipped, such as
+ * one dropped during the cooldown or for being blurred, whose pooled confidences belong to an
+ * earlier scene.
+ */
+public class SharpestFrameSelectorCheck {
+  private static final long WINDOW_MS = 1000;
+
+  public static void main(final String[] args) {
+    final SharpestFrameSelector selector = new SharpestFrameSelector(WINDOW_MS);
+
+    // Nothing classified yet: a skipped frame is handed back and never selected.
+    final TileFrame skipped = createFrame(100.0f, false);
+    check(selector.offer(skipped, 0) == skipped, "A skipped frame should be handed back");
+    final TileFrame current = createFrame(10.0f, true);
+    check(selector.select(current, 10) == current,
+          "A skipped frame should not be selected when nothing else was offered");
+
+    // A classified frame is kept, and a sharper one skipped for the cooldown does not replace it.
+    final TileFrame classified = createFrame(50.0f, true);
+    check(selector.offer(classified, 20) == null, "A classified frame should be kept");
+    final TileFrame cooldown = createFrame(200.0f, false);
+    check(selector.offer(cooldown, 30) == cooldown,
+          "A sharper skipped frame should be handed back");
+    check(selector.select(current, 40) == classified,
+          "The sharpest classified frame should be selected");
+
+    // A blurred frame skipped before classification does not replace it either.
+    final TileFrame blurred = createFrame(1.0f, false);
+    check(selector.offer(blurred, 50) == blurred, "A blurred skipped frame should be handed back");
+    check(selector.select(current, 60) == classified,
+          "A skipped frame should not be selected over a classified one");
+
+    // Once the kept frame expires, skipped frames still do not take its place.
+    check(selector.offer(createFrame(300.0f, false), 20 + WINDOW_MS + 1) != null,
+          "A skipped frame should be handed back after the window");
+    check(selector.select(current, 20 + WINDOW_MS + 2) == current,
+          "The current frame should be selected once the kept one expired");
+
+    System.out.println("SharpestFrameSelector check passed");
+  }
+
+  private static TileFrame createFrame(final float sharpness, final boolean classified) {
+    final TileFrame frame = new TileFrame(64, 64, 2, 2, 32, 8, false);
+    frame.sharpness = sharpness;
+    frame.classified = classified;
+    return frame;
+  }
+}
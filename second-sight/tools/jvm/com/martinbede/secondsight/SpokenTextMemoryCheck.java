@@ -0,0 +1,69 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import static com.martinbede.secondsight.Checks.check;
+
+/**
+ * Checks which texts {@link SpokenTextMemory} takes for repeats of what was just spoken: the same
+ * label read again with a one character OCR error is, a different label is not, even if its image
+ * has the same layout.
+ */
+public class SpokenTextMemoryCheck {
+  private static final long TTL_MS = 60000;
+
+  public static void main(final String[] args) {
+    // OCR noise in a long word of a short label.
+    checkRepeat("Organic bananas 1.99", "Organlc bananas 1.99", true);
+    checkRepeat("Emergency exit only", "Emergency exlt only", true);
+    checkRepeat("Emergency exit only", "EMERGENCY EXIT ONLY!", true);
+    checkRepeat("Do not use while charging", "Do not use whiIe charging", true);
+
+    // Different texts.
+    checkRepeat("Organic bananas 1.99", "Organic bananas 2.99", false);
+    checkRepeat("Platform 2", "Platform 3", false);
+    checkRepeat("Do not use while charging", "Do use while charging", false);
+    checkRepeat("Exit", "Exam", false);
+    checkRepeat("Emergency exit only", "Emergency exit", false);
+
+    // A region is only recognized by its exact fingerprint.
+    final SpokenTextMemory memory = new SpokenTextMemory(16, TTL_MS);
+    memory.remember("Organic bananas 1.99", true, 0x1234L, 0);
+    check("Organic bananas 1.99".equals(memory.lookupRegion(0x1234L, 10)),
+          "The same image should find its text");
+    check(memory.lookupRegion(0x1235L, 10) == null,
+          "An image with a different fingerprint should not find the text");
+    check(memory.lookupRegion(0x1234L, TTL_MS + 1) == null, "The text should expire");
+
+    // The oldest text is dropped when the memory is full.
+    final SpokenTextMemory small = new SpokenTextMemory(2, TTL_MS);
+    small.remember("one", false, 0, 0);
+    small.remember("two", false, 0, 0);
+    small.remember("three", false, 0, 0);
+    check(!small.isRepeat("one", 0), "The oldest text should be dropped");
+    check(small.isRepeat("three", 0), "The newest text should be kept");
+
+    System.out.println("SpokenTextMemory check passed");
+  }
+
+  private static void checkRepeat(final String spoken, final String read, final boolean repeat) {
+    final SpokenTextMemory memory = new SpokenTextMemory(16, TTL_MS);
+    memory.remember(spoken, false, 0, 0);
+    check(memory.isRepeat(read, 10) == repeat,
+          "\"" + read + "\" after \"" + spoken + "\" should" + (repeat ? "" : " not")
+              + " be a repeat");
+  }
+}
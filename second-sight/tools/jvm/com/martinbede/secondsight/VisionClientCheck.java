@@ -0,0 +1,143 @@
+/* Copyright 2015 Google Inc. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.martinbede.secondsight;
+
+import static com.martinbede.secondsight.Checks.check;
+import static com.martinbede.secondsight.Checks.fail;
+
+import com.google.api.services.vision.v1.model.AnnotateImageRequest;
+import com.google.api.services.vision.v1.model.AnnotateImageResponse;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
+import com.google.api.services.vision.v1.model.Feature;
+import com.google.api.services.vision.v1.model.Image;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks {@link VisionClient} against tools/ocr_standin.py on a desktop JVM: a batch annotate
+ * request must round-trip, and it must reuse the connection {@link VisionClient#warmUp} opened.
+ * Run by check_vision_client.sh, which starts the stand-in. Exits with status 1 on failure.
+ *
+ * <p>Usage: VisionClientCheck ROOT_URL TEXT
+ */
+public class VisionClientCheck {
+  private static final int NUM_IMAGES = 2;
+  private static final long WARM_UP_TIMEOUT_MS = 5000;
+
+  public static void main(final String[] args) throws Exception {
+    if (args.length != 2) {
+      fail("Usage: VisionClientCheck ROOT_URL TEXT");
+    }
+    final String rootUrl = args[0];
+    final String text = args[1];
+
+    final VisionClient client = new VisionClient("check-key", rootUrl);
+    try {
+      client.warmUp();
+      final long deadline = System.currentTimeMillis() + WARM_UP_TIMEOUT_MS;
+      int[] stats = getStats(rootUrl);
+      while (stats[1] < 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+        stats = getStats(rootUrl);
+      }
+      check(stats[0] == 1 && stats[1] == 1,
+            "Warm-up should open one connection with one request, got " + format(stats));
+
+      final List<AnnotateImageResponse> responses = client.annotate(createRequest()).getResponses();
+      check(responses != null && responses.size() == NUM_IMAGES,
+            "Expected " + NUM_IMAGES + " responses, got "
+                + (responses == null ? 0 : responses.size()));
+      for (int i = 0; i < NUM_IMAGES; ++i) {
+        final String expected = text + " " + i;
+        final String actual = responses.get(i).getTextAnnotations().get(0).getDescription();
+        check(expected.equals(actual),
+              "Response " + i + " should read \"" + expected + "\", got \"" + actual + "\"");
+      }
+
+      stats = getStats(rootUrl);
+      check(stats[0] == 1 && stats[1] == 2,
+            "Annotate should reuse the warmed up connection, got " + format(stats));
+    } finally {
+      client.close();
+    }
+    System.out.println("VisionClient check passed");
+  }
+
+  private static BatchAnnotateImagesRequest createRequest() {
+    final List<AnnotateImageRequest> requests = new ArrayList<AnnotateImageRequest>(NUM_IMAGES);
+    for (int i = 0; i < NUM_IMAGES; ++i) {
+      final Image image = new Image();
+      // The stand-in does not decode the image.
+      image.setContent("AAAA");
+      final Feature textDetection = new Feature();
+      textDetection.setType("TEXT_DETECTION");
+      final AnnotateImageRequest request = new AnnotateImageRequest();
+      request.setImage(image);
+      request.setFeatures(Collections.singletonList(textDetection));
+      requests.add(request);
+    }
+    final BatchAnnotateImagesRequest batchRequest = new BatchAnnotateImagesRequest();
+    batchRequest.setRequests(requests);
+    return batchRequest;
+  }
+
+  /**
+   * Returns the connections and requests the stand-in has served. Asks over a raw socket, so that
+   * the JVM's keep-alive cache, which the client's transport shares, never sees this connection.
+   */
+  private static int[] getStats(final String rootUrl) throws IOException {
+    final URL url = new URL(rootUrl);
+    final Socket socket = new Socket(url.getHost(), url.getPort());
+    try {
+      final OutputStream out = socket.getOutputStream();
+      out.write(("GET /stats HTTP/1.1\r\nHost: " + url.getHost()
+                 + "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+      out.flush();
+
+      final InputStream in = socket.getInputStream();
+      final ByteArrayOutputStream response = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        response.write(buffer, 0, read);
+      }
+      final String body = response.toString("UTF-8");
+      return new int[] {getInt(body, "connections"), getInt(body, "requests")};
+    } finally {
+      socket.close();
+    }
+  }
+
+  private static int getInt(final String json, final String key) {
+    final Matcher matcher = Pattern.compile("\"" + key + "\": *(\\d+)").matcher(json);
+    check(matcher.find(), "No " + key + " in stats: " + json);
+    return Integer.parseInt(matcher.group(1));
+  }
+
+  private static String format(final int[] stats) {
+    return stats[0] + " connections and " + stats[1] + " requests";
+  }
+}
@@ -0,0 +1,148 @@
+#!/usr/bin/env python
+# Copyright 2015 Google Inc. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+# ==============================================================================
+
+"""Local stand-in for the OCR services used by the app.
+
+Answers every request with a fixed text after an injected delay, so that the
+OCR leg can be measured and tuned offline:
+
+  POST /ocr                   The HttpOcrEngine protocol: the body is a base64
+                              encoded JPEG, the response is the text.
+  POST /v1/images:annotate    The Cloud Vision protocol, for VisionClient
+                              pointed at this server.
+  GET /stats                  How many connections and requests were served,
+                              as JSON, for checking connection reuse.
+
+Usage:
+  python ocr_standin.py --port 8080 --latency_ms 300 --text "Hello world"
+"""
+
+from __future__ import absolute_import
+from __future__ import division
+from __future__ import print_function
+
+import argparse
+import json
+import random
+import sys
+import threading
+import time
+
+try:
+  from http.server import BaseHTTPRequestHandler, HTTPServer
+  from socketserver import ThreadingMixIn
+except ImportError:
+  from BaseHTTPServer import BaseHTTPRequestHandler, HTTPServer
+  from SocketServer import ThreadingMixIn
+
+FLAGS = None
+
+
+class ThreadingHTTPServer(ThreadingMixIn, HTTPServer):
+  daemon_threads = True
+
+  def __init__(self, *args, **kwargs):
+    HTTPServer.__init__(self, *args, **kwargs)
+    self.stats_lock = threading.Lock()
+    self.connections = 0
+    self.requests = 0
+
+
+class StandInHandler(BaseHTTPRequestHandler):
+  # Keep-alive, like the real services.
+  protocol_version = 'HTTP/1.1'
+
+  def setup(self):
+    BaseHTTPRequestHandler.setup(self)
+    # One handler serves every request of a connection. Connections that only
+    # ask for /stats are not counted.
+    self.counted = False
+
+  def _count_request(self):
+    with self.server.stats_lock:
+      if not self.counted:
+        self.server.connections += 1
+        self.counted = True
+      self.server.requests += 1
+
+  def do_GET(self):
+    if not self.path.startswith('/stats'):
+      self._count_request()
+      self._reply(404, 'text/plain', b'Not found')
+      return
+    with self.server.stats_lock:
+      stats = {'connections': self.server.connections,
+               'requests': self.server.requests}
+    self._reply(200, 'application/json', json.dumps(stats).encode('utf-8'))
+
+  def do_HEAD(self):
+    self._count_request()
+    self.send_response(200)
+    self.send_header('Content-Length', '0')
+    self.end_headers()
+
+  def do_POST(self):
+    self._count_request()
+    length = int(self.headers.get('Content-Length', 0))
+    body = self.rfile.read(length)
+
+    delay_ms = FLAGS.latency_ms + random.uniform(0, FLAGS.jitter_ms)
+    time.sleep(delay_ms / 1000.0)
+
+    if random.random() < FLAGS.failure_rate:
+      self._reply(503, 'text/plain', b'Injected failure')
+    elif self.path.startswith('/v1/images:annotate'):
+      # One response per image of the batch, in order.
+      num_images = len(json.loads(body.decode('utf-8')).get('requests', []))
+      response = {'responses': [
+          {'textAnnotations': [{'description': '%s %d' % (FLAGS.text, i)}]}
+          for i in range(num_images)]}
+      self._reply(200, 'application/json',
+                  json.dumps(response).encode('utf-8'))
+    elif self.path.startswith('/ocr'):
+      self._reply(200, 'text/plain; charset=utf-8', FLAGS.text.encode('utf-8'))
+    else:
+      self._reply(404, 'text/plain', b'Not found')
+
+  def _reply(self, status, content_type, body):
+    self.send_response(status)
+    self.send_header('Content-Type', content_type)
+    self.send_header('Content-Length', str(len(body)))
+    self.end_headers()
+    self.wfile.write(body)
+
+
+def main():
+  server = ThreadingHTTPServer(('', FLAGS.port), StandInHandler)
+  # With --port 0 the system picks a free port, which is printed here.
+  print('Serving OCR stand-in on port %d' % server.server_address[1])
+  sys.stdout.flush()
+  server.serve_forever()
+
+
+if __name__ == '__main__':
+  parser = argparse.ArgumentParser()
+  parser.add_argument('--port', type=int, default=8080)
+  parser.add_argument('--text', type=str, default='Stand-in text',
+                      help='Text to answer every request with.')
+  parser.add_argument('--latency_ms', type=float, default=0,
+                      help='Delay before every answer.')
+  parser.add_argument('--jitter_ms', type=float, default=0,
+                      help='Random extra delay of up to this much.')
+  parser.add_argument('--failure_rate', type=float, default=0,
+                      help='Fraction of requests to fail with HTTP 503.')
+  FLAGS = parser.parse_args()
+  main()